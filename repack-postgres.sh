@@ -2,6 +2,21 @@
 # NB: This is the *server* version, which is not to be confused with the client library version.
 # The important compatibility point is the *protocol* version, which hasn't changed in ages.
 VERSION=10.6-1
+# Archive compression: xz (smallest, .txz) or zstd (fastest to unpack, .tzst).
+CODEC=${CODEC:-xz}
+# XZ archives are compressed as multi-block XZ (each block indexed) so that they can be decompressed concurrently.
+XZ_BLOCK_SIZE=${XZ_BLOCK_SIZE:-4MiB}
+
+# compress stdin into the archive named $1 (extension added according to the codec)
+compress() {
+  case $CODEC in
+    xz) xz -T0 --block-size=$XZ_BLOCK_SIZE > $1.txz ;;
+    zstd) zstd -19 -T0 -c > $1.tzst ;;
+    *) echo "Unknown codec $CODEC" && exit 1 ;;
+  esac
+}
+
+set -o pipefail
 
 RSRC_DIR=$PWD/target/generated-resources
 
@@ -21,19 +36,20 @@ mkdir -p dist/ target/generated-resources/
 
 tar xzf $LINUX_DIST -C $PACKDIR
 pushd $PACKDIR/pgsql
-tar cJf $RSRC_DIR/postgresql-Linux-x86_64.txz \
+tar cf - \
   share/postgresql \
   lib \
   bin/initdb \
   bin/pg_ctl \
-  bin/postgres
+  bin/postgres \
+  | compress $RSRC_DIR/postgresql-Linux-x86_64
 popd
 
 rm -fr $PACKDIR && mkdir -p $PACKDIR
 
 unzip -q -d $PACKDIR $OSX_DIST
 pushd $PACKDIR/pgsql
-tar cJf $RSRC_DIR/postgresql-Darwin-x86_64.txz \
+tar cf - \
   share/postgresql \
   lib/libicudata.57.dylib \
   lib/libicui18n.57.dylib \
@@ -45,14 +61,15 @@ tar cJf $RSRC_DIR/postgresql-Darwin-x86_64.txz \
   lib/postgresql/*.so \
   bin/initdb \
   bin/pg_ctl \
-  bin/postgres
+  bin/postgres \
+  | compress $RSRC_DIR/postgresql-Darwin-x86_64
 popd
 
 rm -fr $PACKDIR && mkdir -p $PACKDIR
 
 unzip -q -d $PACKDIR $WINDOWS_DIST
 pushd $PACKDIR/pgsql
-tar cJf $RSRC_DIR/postgresql-Windows-x86_64.txz \
+tar cf - \
   share \
   lib/iconv.lib \
   lib/libxml2.lib \
@@ -62,7 +79,8 @@ tar cJf $RSRC_DIR/postgresql-Windows-x86_64.txz \
   bin/initdb.exe \
   bin/pg_ctl.exe \
   bin/postgres.exe \
-  bin/*.dll
+  bin/*.dll \
+  | compress $RSRC_DIR/postgresql-Windows-x86_64
 popd
 
 rm -rf $PACKDIR
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+
+import fr.avereyl.tools.postgres.ArchiveCodec;
+import fr.avereyl.tools.postgres.PostgresBinaryPreparer;
+import fr.avereyl.tools.postgres.PostgresBinaryResolver;
+import fr.avereyl.tools.traits.FileSystemAware;
+
+/**
+ * Compares archive codecs: for each archive (e.g. the same tar repacked as
+ * .txz and .tzst), the time to decompress it to nothing ('decode') and the time
+ * to prepare the binaries from it ('extract').
+ * <p>
+ * <code>mvn -Pbenchmark test-compile</code>, then
+ * <code>java -cp &lt;classpath&gt; fr.avereyl.tools.benchmark.CodecBenchmark [-runs=N] archive...</code>
+ *
+ * @author guillaume
+ *
+ */
+public class CodecBenchmark implements FileSystemAware {
+
+	public static void main(final String[] args) throws IOException {
+		final CodecBenchmark benchmark = new CodecBenchmark();
+		int runs = 2;
+		boolean archives = false;
+		for (final String arg : args) {
+			if (arg.startsWith("-runs=")) {
+				runs = Integer.parseInt(arg.substring("-runs=".length()));
+				continue;
+			}
+			archives = true;
+			final File archive = new File(arg);
+			final ArchiveCodec codec = ArchiveCodec.detect(archive.toPath());
+			for (int run = 1; run <= runs; run++) {
+				System.out.println(String.format("%s (%s, %d bytes) run %d: decode %d ms, extract %d ms",
+						archive.getName(), codec, archive.length(), run, benchmark.decode(codec, archive),
+						benchmark.extract(archive)));
+			}
+		}
+		if (!archives) {
+			System.err.println("Usage: CodecBenchmark [-runs=N] <archive>...");
+			System.exit(2);
+		}
+	}
+
+	private long decode(final ArchiveCodec codec, final File archive) throws IOException {
+		final long start = System.nanoTime();
+		final byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = codec.decompress(new BufferedInputStream(new FileInputStream(archive), 64 * 1024))) {
+			while (in.read(buffer) != -1) {
+				// discarded
+			}
+		}
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+
+	private long extract(final File archive) throws IOException {
+		final File workingDirectory = Files.createTempDirectory("epg-benchmark").toFile();
+		try {
+			// a new resolver each time, preparations being memoized per resolver
+			final PostgresBinaryResolver resolver = (system, machineHardware) -> new FileInputStream(archive);
+			final long start = System.nanoTime();
+			new PostgresBinaryPreparer().prepare(resolver, Optional.of(workingDirectory));
+			return (System.nanoTime() - start) / 1_000_000;
+		} finally {
+			this.deleteDirectory(workingDirectory);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+import fr.avereyl.tools.postgres.PostgresBinaryPreparer;
+import fr.avereyl.tools.postgres.PostgresBinaryResolver;
+import fr.avereyl.tools.traits.FileSystemAware;
+
+/**
+ * Measures the preparation of binaries from an archive (copy to disk, hash and
+ * extraction), each run into a new working directory, along with the peak
+ * resident memory of the JVM.
+ * <p>
+ * <code>mvn -Pbenchmark test-compile</code>, then
+ * <code>java -Xmx512m -cp &lt;classpath&gt; fr.avereyl.tools.benchmark.ExtractionBenchmark archive.txz [runs]</code>
+ *
+ * @author guillaume
+ *
+ */
+public class ExtractionBenchmark implements FileSystemAware {
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ExtractionBenchmark <archive> [runs]");
+			System.exit(2);
+		}
+		new ExtractionBenchmark().run(new File(args[0]), args.length > 1 ? Integer.parseInt(args[1]) : 3);
+	}
+
+	private void run(final File archive, final int runs) throws IOException {
+		for (int run = 1; run <= runs; run++) {
+			final File workingDirectory = Files.createTempDirectory("epg-benchmark").toFile();
+			try {
+				// a new resolver each time, preparations being memoized per resolver
+				final PostgresBinaryResolver resolver = (system, machineHardware) -> new FileInputStream(archive);
+				final long start = System.nanoTime();
+				new PostgresBinaryPreparer().prepare(resolver, Optional.of(workingDirectory));
+				System.out.println(String.format("run %d: %d ms, peak RSS %s", run,
+						(System.nanoTime() - start) / 1_000_000, getPeakResidentMemory()));
+			} finally {
+				this.deleteDirectory(workingDirectory);
+			}
+		}
+	}
+
+	/**
+	 * @return the peak resident memory of the process (VmHWM, Linux only)
+	 */
+	private static String getPeakResidentMemory() {
+		try {
+			for (final String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+				if (line.startsWith("VmHWM:")) {
+					return line.substring("VmHWM:".length()).trim();
+				}
+			}
+		} catch (final IOException e) {
+			// not on Linux
+		}
+		return "unknown";
+	}
+
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+import fr.avereyl.tools.traits.FileSystemAware;
+
+/**
+ * Compares the creation of a data directory by initdb with its copy from the
+ * cached initdb template. The first template run also creates the template.
+ * <p>
+ * <code>mvn -Pbenchmark test-compile</code>, then (as a user allowed to run
+ * postgres, i.e. not root)
+ * <code>java -cp &lt;classpath&gt; fr.avereyl.tools.benchmark.InitdbBenchmark [-pgdir=DIR] [-runs=N]</code>
+ *
+ * @author guillaume
+ *
+ */
+public class InitdbBenchmark implements FileSystemAware {
+
+	public static void main(final String[] args) throws IOException {
+		String pgdir = null;
+		int runs = 5;
+		for (final String arg : args) {
+			if (arg.startsWith("-pgdir=")) {
+				pgdir = arg.substring("-pgdir=".length());
+			} else if (arg.startsWith("-runs=")) {
+				runs = Integer.parseInt(arg.substring("-runs=".length()));
+			} else {
+				System.err.println("Usage: InitdbBenchmark [-pgdir=DIR] [-runs=N]");
+				System.exit(2);
+			}
+		}
+		final InitdbBenchmark benchmark = new InitdbBenchmark();
+		benchmark.run(pgdir, false, runs);
+		benchmark.run(pgdir, true, runs);
+	}
+
+	private void run(final String pgdir, final boolean initdbTemplate, final int runs) throws IOException {
+		for (int run = 1; run <= runs; run++) {
+			final File parent = Files.createTempDirectory("epg-benchmark").toFile();
+			try {
+				final PostgresEmbeddedServer.Builder builder = PostgresEmbeddedServer.builder()
+						.datadir(new File(parent, "data").getAbsolutePath()).initdbTemplate(initdbTemplate);
+				if (pgdir != null) {
+					builder.pgdir(pgdir);
+				}
+				final long start = System.nanoTime();
+				builder.build();
+				System.out.println(String.format("%s run %d: %d ms", initdbTemplate ? "template" : "initdb", run,
+						(System.nanoTime() - start) / 1_000_000));
+			} finally {
+				this.deleteDirectory(parent);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+import fr.avereyl.tools.postgres.PostgresProfile;
+import fr.avereyl.tools.traits.FileSystemAware;
+
+/**
+ * Compares the write throughput of the settings profiles, with and without
+ * unlogged tables: single-row autocommit inserts, then a bulk
+ * <code>INSERT ... SELECT</code>, into a table referencing another one through
+ * a foreign key.
+ * <p>
+ * <code>mvn -Pbenchmark test-compile</code>, then (as a user allowed to run
+ * postgres, i.e. not root)
+ * <code>java -cp &lt;classpath&gt; fr.avereyl.tools.benchmark.ProfileBenchmark [-pgdir=DIR] [-runs=N]</code>
+ *
+ * @author guillaume
+ *
+ */
+public class ProfileBenchmark implements FileSystemAware {
+
+	private static final int SINGLE_ROWS = 20_000;
+	private static final int BULK_ROWS = 2_000_000;
+
+	public static void main(final String[] args) throws IOException, SQLException {
+		String pgdir = null;
+		int runs = 2;
+		for (final String arg : args) {
+			if (arg.startsWith("-pgdir=")) {
+				pgdir = arg.substring("-pgdir=".length());
+			} else if (arg.startsWith("-runs=")) {
+				runs = Integer.parseInt(arg.substring("-runs=".length()));
+			} else {
+				System.err.println("Usage: ProfileBenchmark [-pgdir=DIR] [-runs=N]");
+				System.exit(2);
+			}
+		}
+		final ProfileBenchmark benchmark = new ProfileBenchmark();
+		for (int run = 1; run <= runs; run++) {
+			benchmark.run(pgdir, PostgresProfile.DEFAULT, false, run);
+			benchmark.run(pgdir, PostgresProfile.FAST_TEST, false, run);
+			benchmark.run(pgdir, PostgresProfile.FAST_TEST, true, run);
+		}
+	}
+
+	private void run(final String pgdir, final PostgresProfile profile, final boolean unloggedTables, final int run)
+			throws IOException, SQLException {
+		final File parent = Files.createTempDirectory("epg-benchmark").toFile();
+		try {
+			final PostgresEmbeddedServer.Builder builder = PostgresEmbeddedServer.builder()
+					.datadir(new File(parent, "data").getAbsolutePath()).profile(profile)
+					.unloggedTables(unloggedTables);
+			if (pgdir != null) {
+				builder.pgdir(pgdir);
+			}
+			final PostgresEmbeddedServer server = builder.build();
+			server.start(new HashMap<>());
+			try (Connection connection = server.getPostgresDatabase().getConnection();
+					Statement statement = connection.createStatement()) {
+				statement.execute("CREATE TABLE benchmark_parent (id int PRIMARY KEY)");
+				statement.execute("INSERT INTO benchmark_parent VALUES (0)");
+				statement.execute("CREATE TABLE benchmark (id int PRIMARY KEY, "
+						+ "parent int NOT NULL REFERENCES benchmark_parent, value text)");
+				if (unloggedTables) {
+					server.setTablesUnlogged("postgres");
+					checkUnlogged(statement);
+				}
+				long start = System.nanoTime();
+				try (PreparedStatement insert = connection.prepareStatement("INSERT INTO benchmark VALUES (?, 0, 'x')")) {
+					for (int i = 0; i < SINGLE_ROWS; i++) {
+						insert.setInt(1, i);
+						insert.executeUpdate();
+					}
+				}
+				final double singleSeconds = (System.nanoTime() - start) / 1e9;
+				start = System.nanoTime();
+				statement.execute("INSERT INTO benchmark SELECT g, 0, repeat('x', 100) FROM generate_series("
+						+ SINGLE_ROWS + ", " + (SINGLE_ROWS + BULK_ROWS - 1) + ") g");
+				final double bulkSeconds = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format("%s%s run %d: %.0f tx/s, %.0f rows/s", profile,
+						unloggedTables ? " + unlogged" : "", run, SINGLE_ROWS / singleSeconds,
+						BULK_ROWS / bulkSeconds));
+			} finally {
+				server.close();
+			}
+		} finally {
+			this.deleteDirectory(parent);
+		}
+	}
+
+	private static void checkUnlogged(final Statement statement) throws SQLException {
+		try (ResultSet logged = statement.executeQuery("SELECT string_agg(relname, ', ') FROM pg_class "
+				+ "WHERE relname IN ('benchmark_parent', 'benchmark') AND relpersistence <> 'u'")) {
+			logged.next();
+			if (logged.getString(1) != null) {
+				throw new IllegalStateException("Tables still logged: " + logged.getString(1));
+			}
+		}
+	}
+
+}
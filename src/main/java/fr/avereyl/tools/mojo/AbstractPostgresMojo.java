@@ -15,12 +15,24 @@
  ******************************************************************************/
 package fr.avereyl.tools.mojo;
 
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
 
 import fr.avereyl.tools.EmbeddedServer;
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+import fr.avereyl.tools.postgres.PostgresProfile;
 
 /**
  * @author guillaume
@@ -28,6 +40,16 @@ import fr.avereyl.tools.EmbeddedServer;
  */
 public abstract class AbstractPostgresMojo extends AbstractMojo {
 
+	/**
+	 * Key of the started server (the first one when several) in the plugin
+	 * context.
+	 */
+	protected static final String SERVER_CONTEXT_KEY = "postgres.server";
+	/**
+	 * Key of the list of all the started servers in the plugin context.
+	 */
+	protected static final String SERVERS_CONTEXT_KEY = "postgres.servers";
+
 	/**
 	 * The port to start POSTGRES on.
 	 */
@@ -57,6 +79,85 @@ public abstract class AbstractPostgresMojo extends AbstractMojo {
 	@Parameter(property = "postgres.datadir", defaultValue = "target/postgresdb/data")
 	public String datadir;
 
+	/**
+	 * The number of independent servers to start (e.g. one per test fork), each
+	 * with its own data directory (datadir suffixed with -1, -2...) and port
+	 * (following the given one, if any). The pool goal spreads its databases
+	 * over the servers and the other goals apply to each of them.
+	 */
+	@Parameter(property = "postgres.instances", defaultValue = "1")
+	public int instances = 1;
+
+	/**
+	 * The number of hot-standby replicas streaming from each server.
+	 */
+	@Parameter(property = "postgres.replicas", defaultValue = "0")
+	public int replicas;
+
+	/**
+	 * The settings profile: DEFAULT or FAST_TEST (durability off, for throwaway
+	 * clusters). Explicit settings take precedence.
+	 */
+	@Parameter(property = "postgres.profile", defaultValue = "DEFAULT")
+	public PostgresProfile profile = PostgresProfile.DEFAULT;
+
+	/**
+	 * Whether tables are made unlogged (faster writes, but emptied by a crash
+	 * and not replicated): once the execute-sql scripts ran, before the
+	 * load-fixtures goal loads and once the pool template is initialized.
+	 */
+	@Parameter(property = "postgres.unloggedTables")
+	public boolean unloggedTables;
+
+	/**
+	 * Whether to size memory, connection and parallelism settings from the cores
+	 * and memory of the host (cgroup limits included). Explicit settings take
+	 * precedence.
+	 */
+	@Parameter(property = "postgres.autoTune")
+	public boolean autoTune;
+
+	/**
+	 * The expected number of parallel test forks, spread over the servers, to
+	 * auto-tune for.
+	 */
+	@Parameter(property = "postgres.autoTune.forks", defaultValue = "1")
+	public int forks = 1;
+
+	/**
+	 * Server settings (postgresql.conf parameters), overriding the ones of the
+	 * profile and of the auto-tuning.
+	 */
+	@Parameter
+	public Map<String, String> settings = Collections.emptyMap();
+
+	/**
+	 * Whether to place the data directory on a memory-backed filesystem
+	 * (/dev/shm or another tmpfs) when it has room enough, instead of datadir
+	 * (Linux only). It is then always deleted when stopping.
+	 */
+	@Parameter(property = "postgres.ramDisk")
+	public boolean ramDisk;
+
+	/**
+	 * Whether to also extract the binaries on the memory-backed filesystem.
+	 */
+	@Parameter(property = "postgres.ramDisk.binaries")
+	public boolean ramDiskBinaries;
+
+	/**
+	 * Whether to delete the data directory when stopping.
+	 */
+	@Parameter(property = "postgres.cleanDatadir")
+	public boolean cleanDatadir;
+
+	/**
+	 * The directory where storing the data directory snapshot (suffixed with -1,
+	 * -2... when several servers).
+	 */
+	@Parameter(property = "postgres.snapshotdir", defaultValue = "target/postgresdb/snapshot")
+	public String snapshotdir;
+
 	/**
 	 * The username to use when authenticating.
 	 */
@@ -82,17 +183,67 @@ public abstract class AbstractPostgresMojo extends AbstractMojo {
 	public String connectionURL;
 
 	/**
-	 * The POSTGRES validation query.
+	 * The POSTGRES validation query, run once the server accepts connections
+	 * (skipped if empty).
 	 */
 	@Parameter(property = "postgres.validationQuery", defaultValue = "SELECT 1")
 	public String validationQuery;
 
+	/**
+	 * Whether to listen on a Unix domain socket, used for all local connections
+	 * (exported JDBC URLs included).
+	 */
+	@Parameter(property = "postgres.unixSocket")
+	public boolean unixSocket;
+
+	/**
+	 * Whether to listen on TCP (may only be disabled along with unixSocket).
+	 */
+	@Parameter(property = "postgres.tcp", defaultValue = "true")
+	public boolean tcp = true;
+
+	/**
+	 * Whether to launch the postmaster directly instead of through pg_ctl (not on
+	 * Windows).
+	 */
+	@Parameter(property = "postgres.directPostmaster")
+	public boolean directPostmaster;
+
+	/**
+	 * Whether to share the server between the modules of the reactor: it is
+	 * started by the first module asking for this configuration, reused by the
+	 * next ones and stopped along with the last module of the reactor.
+	 */
+	@Parameter(property = "postgres.shared")
+	public boolean shared;
+
+	/**
+	 * Whether to leave the server running when stopping, the next builds
+	 * attaching to it instead of starting a new one (as long as the configuration
+	 * is unchanged).
+	 */
+	@Parameter(property = "postgres.keepAlive")
+	public boolean keepAlive;
+
+	/**
+	 * The time (in minutes) after which a server kept alive and no longer used
+	 * stops by itself (never if 0).
+	 */
+	@Parameter(property = "postgres.keepAlive.idleTimeout", defaultValue = "0")
+	public int idleTimeout;
+
 	/**
 	 * Whether to bypass running POSTGRES.
 	 */
 	@Parameter(property = "postgres.skip")
 	public boolean skip;
 
+	@Parameter(defaultValue = "${project}", readonly = true)
+	public MavenProject project;
+
+	@Parameter(defaultValue = "${session}", readonly = true)
+	public MavenSession session;
+
 	/**
 	 * Delegates the mojo execution to {@link #doExecute()} after initializing the
 	 * {@link Server} for localhost
@@ -120,6 +271,119 @@ public abstract class AbstractPostgresMojo extends AbstractMojo {
 
 	}
 
+	/**
+	 * @return the server started by the start goal in this build
+	 * @throws MojoExecutionException
+	 *             if no server has been started
+	 */
+	protected PostgresEmbeddedServer getStartedServer() throws MojoExecutionException {
+		final PostgresEmbeddedServer startedServer = (PostgresEmbeddedServer) this.getPluginContext()
+				.get(SERVER_CONTEXT_KEY);
+		if (startedServer == null) {
+			throw new MojoExecutionException("No started server found, run the start goal first.");
+		}
+		return startedServer;
+	}
+
+	/**
+	 * @return the servers started by the start goal in this build (one per
+	 *         instance)
+	 * @throws MojoExecutionException
+	 *             if no server has been started
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<PostgresEmbeddedServer> getStartedServers() throws MojoExecutionException {
+		final List<PostgresEmbeddedServer> startedServers = (List<PostgresEmbeddedServer>) this.getPluginContext()
+				.get(SERVERS_CONTEXT_KEY);
+		return startedServers == null ? Collections.singletonList(this.getStartedServer()) : startedServers;
+	}
+
+	/**
+	 * @param instance
+	 *            the number of the server (from 1)
+	 * @return the data directory of the server
+	 */
+	protected String getInstanceDatadir(final int instance) {
+		return this.instances > 1 ? this.datadir + "-" + instance : this.datadir;
+	}
+
+	/**
+	 * @param instance
+	 *            the number of the server (from 1)
+	 * @param servers
+	 *            the number of started servers
+	 * @return the snapshot directory of the server
+	 */
+	protected File getInstanceSnapshotdir(final int instance, final int servers) {
+		return new File(servers > 1 ? this.snapshotdir + "-" + instance : this.snapshotdir);
+	}
+
+	/**
+	 * @param instance
+	 *            the number of the server (from 1)
+	 * @return the port of the server, 0 if to be chosen
+	 */
+	protected int getInstancePort(final int instance) {
+		return this.port > 0 ? this.port + instance - 1 : this.port;
+	}
+
+	/**
+	 * @param instance
+	 *            the number of the server (from 1)
+	 * @return the builder of the server, according to the mojo parameters
+	 */
+	protected PostgresEmbeddedServer.Builder createServerBuilder(final int instance) {
+		final PostgresEmbeddedServer.Builder builder = PostgresEmbeddedServer.builder()
+				// build server according mojo parameters
+				.port(this.getInstancePort(instance)).pgdir(this.pgdir).datadir(this.getInstanceDatadir(instance))
+				.unixSocket(this.unixSocket).tcp(this.tcp).directPostmaster(this.directPostmaster)
+				.cleanDataDirectoryAfterClosing(this.cleanDatadir)
+				// attach to the server left running by a previous build (if any)
+				.keepAlive(this.keepAlive).idleTimeout(Duration.ofMinutes(this.idleTimeout))
+				// hot standbys streaming from the server
+				.replicas(this.replicas)
+				// durability settings
+				.profile(this.profile).unloggedTables(this.unloggedTables)
+				// data directory (and binaries) in memory, if room enough
+				.ramDisk(this.ramDisk).ramDiskBinaries(this.ramDiskBinaries)
+				// sized for the host, each server getting its share of the forks
+				.autoTune(this.autoTune ? (this.forks + this.instances - 1) / Math.max(1, this.instances) : 0,
+						Math.max(1, this.instances))
+				// final check once the server accepts connections
+				.validationQuery(this.validationQuery);
+		// .config("-U", "postgres")
+		// explicit settings take precedence over the profile and the auto-tuning
+		this.settings.forEach(builder::config);
+		return builder;
+	}
+
+	/**
+	 * @param instance
+	 *            the number of the server (from 1)
+	 * @return the key of the server shared for this configuration
+	 */
+	protected String getSharedServerKey(final int instance) {
+		return DigestUtils.md5Hex(String.join("|", String.valueOf(this.getInstancePort(instance)),
+				new File(this.pgdir).getAbsolutePath(), new File(this.getInstanceDatadir(instance)).getAbsolutePath(),
+				String.valueOf(this.unixSocket), String.valueOf(this.tcp),
+				String.valueOf(this.directPostmaster), String.valueOf(this.cleanDatadir),
+				String.valueOf(this.keepAlive), String.valueOf(this.idleTimeout), String.valueOf(this.ramDisk),
+				String.valueOf(this.ramDiskBinaries), String.valueOf(this.validationQuery),
+				String.valueOf(this.replicas), String.valueOf(this.profile), String.valueOf(this.unloggedTables),
+				String.valueOf(this.autoTune), String.valueOf(this.forks), new TreeMap<>(this.settings).toString()));
+	}
+
+	/**
+	 * @return whether the current project is the last one of the reactor
+	 */
+	protected boolean isLastReactorProject() {
+		if (this.session == null || this.project == null) {
+			return true;
+		}
+		final List<MavenProject> projects = this.session.getProjects();
+		return projects.isEmpty() || projects.get(projects.size() - 1) == this.project;
+	}
+
 	protected abstract void doExecute() throws MojoExecutionException, MojoFailureException;
 
 }
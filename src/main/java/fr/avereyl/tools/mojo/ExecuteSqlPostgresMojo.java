@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.mojo;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+import fr.avereyl.tools.postgres.PostgresScriptRunner;
+
+/**
+ * Run SQL scripts (schema, reference data...) on each server started by the
+ * start goal. Statements are sent in batches and independent scripts run in
+ * parallel, a script running after the ones named in its
+ * <code>-- depends-on: a.sql, b.sql</code> header comments.
+ *
+ * @author guillaume
+ *
+ */
+@Mojo(name = "execute-sql", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST, requiresProject = false)
+public class ExecuteSqlPostgresMojo extends AbstractPostgresMojo {
+
+	/**
+	 * The SQL scripts to run, directories standing for the .sql files they
+	 * contain (sorted by name).
+	 */
+	@Parameter(property = "postgres.sql.scripts")
+	public List<File> scripts = Collections.emptyList();
+
+	/**
+	 * The database to run the scripts on.
+	 */
+	@Parameter(property = "postgres.sql.database", defaultValue = "postgres")
+	public String database;
+
+	/**
+	 * The maximum number of scripts run at once (each on its own connection).
+	 */
+	@Parameter(property = "postgres.sql.threads", defaultValue = "4")
+	public int threads;
+
+	/**
+	 * The maximum number of statements sent at once.
+	 */
+	@Parameter(property = "postgres.sql.batchSize", defaultValue = "100")
+	public int batchSize;
+
+	/**
+	 * Whether to run the scripts one after the other, in the given order.
+	 */
+	@Parameter(property = "postgres.sql.ordered")
+	public boolean ordered;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see fr.avereyl.tools.AbstractPostgresMojo#doExecute()
+	 */
+	@Override
+	protected void doExecute() throws MojoExecutionException, MojoFailureException {
+		final List<File> files = this.listScripts();
+		if (files.isEmpty()) {
+			this.getLog().info("No SQL script to run.");
+			return;
+		}
+		final long start = System.nanoTime();
+		try {
+			final List<PostgresEmbeddedServer> servers = this.getStartedServers();
+			final List<PostgresScriptRunner.ScriptResult> results = new ArrayList<>();
+			for (final PostgresEmbeddedServer server : servers) {
+				results.addAll(server.createScriptRunner(this.database, this.threads, this.batchSize).run(files,
+						this.ordered));
+			}
+			final long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+			// each script result is logged by the runner
+			int statements = 0;
+			for (final PostgresScriptRunner.ScriptResult result : results) {
+				statements += result.getStatements();
+			}
+			this.getLog().info(String.format("Ran %d scripts (%d statements) on %d server(s) in %d ms (%.0f statements/s)",
+					files.size(), statements, servers.size(), elapsedMs, statements * 1000.0 / elapsedMs));
+		} catch (final SQLException e) {
+			this.getLog().error(e.getMessage());
+			throw new MojoExecutionException("Unable to run the SQL scripts.", e);
+		}
+	}
+
+	private List<File> listScripts() throws MojoExecutionException {
+		final List<File> files = new ArrayList<>();
+		for (final File script : this.scripts) {
+			if (script.isDirectory()) {
+				final File[] children = script.listFiles((directory, name) -> name.endsWith(".sql"));
+				Arrays.sort(children);
+				files.addAll(Arrays.asList(children));
+			} else if (script.isFile()) {
+				files.add(script);
+			} else {
+				throw new MojoExecutionException("SQL script not found: " + script);
+			}
+		}
+		return files;
+	}
+
+}
@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.mojo;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+import fr.avereyl.tools.postgres.PostgresFixtureLoader;
+
+/**
+ * Load fixture files (.csv, .tsv or .txt, possibly gzip or zstd compressed)
+ * with COPY into the tables named after them, on each server started by the
+ * start goal. Tables load in parallel.
+ *
+ * @author guillaume
+ *
+ */
+@Mojo(name = "load-fixtures", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST, requiresProject = false)
+public class LoadFixturesPostgresMojo extends AbstractPostgresMojo {
+
+	/**
+	 * The fixture files to load, directories standing for the fixture files they
+	 * contain. A file loads into the table named after it, extensions removed
+	 * (e.g. sales.orders.csv.gz into sales.orders, case sensitive).
+	 */
+	@Parameter(property = "postgres.fixtures.files")
+	public List<File> fixtures = Collections.emptyList();
+
+	/**
+	 * The database to load the fixtures into.
+	 */
+	@Parameter(property = "postgres.fixtures.database", defaultValue = "postgres")
+	public String database;
+
+	/**
+	 * The maximum number of tables loaded at once (each on its own connection).
+	 */
+	@Parameter(property = "postgres.fixtures.threads", defaultValue = "4")
+	public int threads;
+
+	/**
+	 * Whether CSV files start with a header line.
+	 */
+	@Parameter(property = "postgres.fixtures.header", defaultValue = "true")
+	public boolean header = true;
+
+	/**
+	 * Whether to drop the indexes and constraints of the tables (and the foreign
+	 * keys referencing them) during the load, recreating them afterwards.
+	 */
+	@Parameter(property = "postgres.fixtures.deferConstraints")
+	public boolean deferConstraints;
+
+	/**
+	 * The size (in KB) of the buffers streaming the files.
+	 */
+	@Parameter(property = "postgres.fixtures.bufferSize", defaultValue = "64")
+	public int bufferSize;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see fr.avereyl.tools.AbstractPostgresMojo#doExecute()
+	 */
+	@Override
+	protected void doExecute() throws MojoExecutionException, MojoFailureException {
+		final List<File> files = this.listFixtures();
+		if (files.isEmpty()) {
+			this.getLog().info("No fixture to load.");
+			return;
+		}
+		final long start = System.nanoTime();
+		try {
+			final List<PostgresEmbeddedServer> servers = this.getStartedServers();
+			final List<PostgresFixtureLoader.LoadResult> results = new ArrayList<>();
+			for (final PostgresEmbeddedServer server : servers) {
+				results.addAll(server.createFixtureLoader(this.database, this.threads, this.bufferSize * 1024)
+						.load(files, this.header, this.deferConstraints));
+			}
+			final long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+			// each table result is logged by the loader
+			long rows = 0;
+			long bytes = 0;
+			for (final PostgresFixtureLoader.LoadResult result : results) {
+				rows += result.getRows();
+				bytes += result.getBytes();
+			}
+			this.getLog().info(String.format(
+					"Loaded %d tables (%d rows, %.1f MB) on %d server(s) in %d ms (%.0f rows/s, %.1f MB/s)",
+					results.size() / servers.size(), rows, bytes / 1048576.0, servers.size(), elapsedMs,
+					rows * 1000.0 / elapsedMs, bytes / 1048576.0 * 1000.0 / elapsedMs));
+		} catch (final SQLException e) {
+			this.getLog().error(e.getMessage());
+			throw new MojoExecutionException("Unable to load the fixtures.", e);
+		}
+	}
+
+	private List<File> listFixtures() throws MojoExecutionException {
+		final List<File> files = new ArrayList<>();
+		for (final File fixture : this.fixtures) {
+			if (fixture.isDirectory()) {
+				final File[] children = fixture.listFiles(PostgresFixtureLoader::isFixture);
+				Arrays.sort(children);
+				files.addAll(Arrays.asList(children));
+			} else if (fixture.isFile()) {
+				if (!PostgresFixtureLoader.isFixture(fixture)) {
+					throw new MojoExecutionException("Not a fixture file (.csv, .tsv or .txt): " + fixture);
+				}
+				files.add(fixture);
+			} else {
+				throw new MojoExecutionException("Fixture file not found: " + fixture);
+			}
+		}
+		return files;
+	}
+
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.mojo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import fr.avereyl.tools.postgres.PostgresDatabasePool;
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+
+/**
+ * Clone isolated databases from a template database (created once, then
+ * initialized with the given scripts) on the servers started by the start goal,
+ * the n-th database being cloned on the server of the same number (modulo the
+ * number of servers). Their names are exported as the
+ * <code>postgres.pool.databases</code> project property (comma separated) and
+ * their URLs as <code>postgres.pool.url.&lt;index&gt;</code> (numbered from 1).
+ *
+ * @author guillaume
+ *
+ */
+@Mojo(name = "pool", defaultPhase = LifecyclePhase.PRE_INTEGRATION_TEST, requiresProject = false)
+public class PoolPostgresMojo extends AbstractPostgresMojo {
+
+	/**
+	 * The number of databases to clone.
+	 */
+	@Parameter(property = "postgres.pool.size", defaultValue = "4")
+	public int poolSize;
+
+	/**
+	 * The name of the template database. Defaults to &lt;name&gt;_template.
+	 * Suffixed with a hash of the scripts contents, so that a template
+	 * initialized by other scripts is never reused.
+	 */
+	@Parameter(property = "postgres.pool.template")
+	public String poolTemplate;
+
+	/**
+	 * The SQL scripts initializing the template database (schema, seed data...).
+	 */
+	@Parameter(property = "postgres.pool.scripts")
+	public List<File> poolScripts = Collections.emptyList();
+
+	/**
+	 * Maximum time to wait for the databases to be cloned.
+	 */
+	@Parameter(property = "postgres.pool.timeout", defaultValue = "60")
+	public int poolTimeout;
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see fr.avereyl.tools.AbstractPostgresMojo#doExecute()
+	 */
+	@Override
+	protected void doExecute() throws MojoExecutionException, MojoFailureException {
+		final List<PostgresEmbeddedServer> servers = this.getStartedServers();
+		final String template = this.getTemplateName();
+		final List<PostgresDatabasePool> pools = new ArrayList<>();
+		try {
+			// one-shot: exactly poolSize clones, none cloned only to be dropped on close
+			for (int i = 0; i < servers.size() && i < this.poolSize; i++) {
+				final int size = (this.poolSize - i + servers.size() - 1) / servers.size();
+				pools.add(servers.get(i).createDatabasePool(template, size, this::runScripts, false));
+			}
+			final long deadline = System.nanoTime() + Duration.ofSeconds(this.poolTimeout).toNanos();
+			for (final PostgresDatabasePool pool : pools) {
+				pool.awaitFull(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+			}
+			final List<String> databases = new ArrayList<>();
+			for (int i = 0; i < this.poolSize; i++) {
+				final PostgresDatabasePool.PooledDatabase database = pools.get(i % pools.size()).acquire();
+				databases.add(database.getName());
+				// numbered from 1, like ${surefire.forkNumber}
+				this.project.getProperties().setProperty("postgres.pool.url." + (i + 1),
+						database.getJdbcUrl(this.username));
+			}
+			this.project.getProperties().setProperty("postgres.pool.databases", String.join(",", databases));
+			this.getLog().info("Cloned " + template + " into " + databases);
+		} catch (final SQLException e) {
+			this.getLog().error(e.getMessage());
+			throw new MojoExecutionException("Unable to create the database pool.", e);
+		} finally {
+			pools.forEach(PostgresDatabasePool::close);
+		}
+	}
+
+	private String getTemplateName() throws MojoExecutionException {
+		final String template = this.poolTemplate == null ? this.name + "_template" : this.poolTemplate;
+		if (this.poolScripts.isEmpty()) {
+			return template;
+		}
+		final MessageDigest digest = DigestUtils.getMd5Digest();
+		for (final File script : this.poolScripts) {
+			try {
+				DigestUtils.updateDigest(digest, script);
+			} catch (final IOException e) {
+				throw new MojoExecutionException("Could not read template script " + script, e);
+			}
+		}
+		return template + "_" + Hex.encodeHexString(digest.digest()).substring(0, 8);
+	}
+
+	private void runScripts(final DataSource template) throws SQLException {
+		try (Connection connection = template.getConnection(); Statement statement = connection.createStatement()) {
+			for (final File script : this.poolScripts) {
+				this.getLog().info("Running " + script + " on template database");
+				statement.execute(new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8));
+			}
+		} catch (final IOException e) {
+			throw new SQLException("Could not read template script", e);
+		}
+	}
+
+}
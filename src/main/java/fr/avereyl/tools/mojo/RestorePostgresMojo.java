@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.mojo;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+
+/**
+ * Restore the data directory of each server started by the start goal from its
+ * snapshot directory, only rewriting the files changed since the snapshot.
+ *
+ * @author guillaume
+ *
+ */
+@Mojo(name = "restore", requiresProject = false)
+public class RestorePostgresMojo extends AbstractPostgresMojo {
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see fr.avereyl.tools.AbstractPostgresMojo#doExecute()
+	 */
+	@Override
+	protected void doExecute() throws MojoExecutionException, MojoFailureException {
+		try {
+			final List<PostgresEmbeddedServer> servers = this.getStartedServers();
+			for (int i = 0; i < servers.size(); i++) {
+				servers.get(i).restore(this.getInstanceSnapshotdir(i + 1, servers.size()));
+			}
+		} catch (final IOException e) {
+			this.getLog().error(e.getMessage());
+			throw new MojoExecutionException("Unable to restore the data directory.", e);
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.mojo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Servers shared by the modules of a reactor, keyed by a hash of their
+ * configuration and reference counted. Plugin classes are loaded once per
+ * build, so this registry lives as long as the build.
+ * <p>
+ * Modules are usually built one after the other: a server no longer used is
+ * kept running for the next modules, and only stopped when released by the
+ * last module of the reactor (or, failing that, when the build JVM exits).
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+final class SharedServerRegistry {
+
+	/**
+	 * Starts a server when none is shared for a configuration yet.
+	 */
+	@FunctionalInterface
+	interface ServerStarter {
+
+		PostgresEmbeddedServer start() throws IOException;
+
+	}
+
+	private static final Map<String, SharedServer> SERVERS = new HashMap<>();
+	private static boolean shutdownHookAdded;
+
+	private SharedServerRegistry() {
+	}
+
+	/**
+	 * Get the server shared for the given configuration, starting it if needed.
+	 *
+	 * @param key
+	 *            the configuration hash
+	 * @param starter
+	 *            starts the server when not shared yet
+	 * @return the shared server
+	 * @throws IOException
+	 *             if the server cannot be started
+	 */
+	static PostgresEmbeddedServer acquire(final String key, final ServerStarter starter) throws IOException {
+		final SharedServer shared;
+		synchronized (SharedServerRegistry.class) {
+			shared = SERVERS.computeIfAbsent(key, k -> new SharedServer());
+			shared.users++;
+			addShutdownHook();
+		}
+		// servers of different configurations may be started concurrently
+		synchronized (shared) {
+			if (shared.server != null) {
+				log.info("Reusing shared POSTGRES server {}", key);
+				return shared.server;
+			}
+			try {
+				shared.server = starter.start();
+				return shared.server;
+			} catch (final IOException | RuntimeException e) {
+				synchronized (SharedServerRegistry.class) {
+					if (--shared.users == 0) {
+						SERVERS.remove(key);
+					}
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Release the server shared for the given configuration.
+	 *
+	 * @param key
+	 *            the configuration hash
+	 * @param lastModule
+	 *            whether no other module of the reactor is to be built
+	 * @throws IOException
+	 *             if the server cannot be stopped
+	 */
+	static synchronized void release(final String key, final boolean lastModule) throws IOException {
+		final SharedServer shared = SERVERS.get(key);
+		if (shared == null || shared.server == null) {
+			log.warn("No shared POSTGRES server {} to release", key);
+			return;
+		}
+		shared.users = Math.max(0, shared.users - 1);
+		if (shared.users > 0 || !lastModule) {
+			log.info("Keeping shared POSTGRES server {} running ({} users)", key, shared.users);
+			return;
+		}
+		SERVERS.remove(key);
+		shared.server.close();
+	}
+
+	private static void addShutdownHook() {
+		if (shutdownHookAdded) {
+			return;
+		}
+		shutdownHookAdded = true;
+		final Thread closer = new Thread(() -> {
+			final List<SharedServer> remaining;
+			synchronized (SharedServerRegistry.class) {
+				remaining = new ArrayList<>(SERVERS.values());
+				SERVERS.clear();
+			}
+			for (final SharedServer shared : remaining) {
+				if (shared.server == null) {
+					continue;
+				}
+				try {
+					shared.server.close();
+				} catch (final IOException e) {
+					log.error("Could not stop shared POSTGRES server", e);
+				}
+			}
+		}, "postgres-shared-closer");
+		Runtime.getRuntime().addShutdownHook(closer);
+	}
+
+	private static final class SharedServer {
+
+		private volatile PostgresEmbeddedServer server;
+		private int users;
+
+	}
+
+}
@@ -16,8 +16,17 @@
 package fr.avereyl.tools.mojo;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -40,22 +49,97 @@ public class StartPostgresMojo extends AbstractPostgresMojo {
 	 * @see fr.avereyl.tools.AbstractPostgresMojo#doExecute()
 	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	protected void doExecute() throws MojoExecutionException, MojoFailureException {
 		try {
-			this.server = PostgresEmbeddedServer.builder()
-					// build server according mojo parameters
-					.port(this.port).pgdir(this.pgdir).datadir(this.datadir)
-					// .config("-U", "postgres")
-					.build();
-			final Map<String, String> connectionConfig = new HashMap<>();
-			// connectionConfig.put("-U", "postgres");
-
-			// TODO add connection config from mojo parameter
-			this.server.start(connectionConfig);
+			final List<PostgresEmbeddedServer> servers = this.startServers();
+			this.server = servers.get(0);
+			// exported for the tests
+			final Properties properties = this.project.getProperties();
+			properties.setProperty("postgres.url", servers.get(0).getJdbcUrl(this.username, "postgres"));
+			if (servers.size() > 1) {
+				// e.g. postgres.url.${surefire.forkNumber}, or postgres.urls split by fork
+				final List<String> urls = new ArrayList<>();
+				for (int i = 0; i < servers.size(); i++) {
+					urls.add(servers.get(i).getJdbcUrl(this.username, "postgres"));
+					properties.setProperty("postgres.url." + (i + 1), urls.get(i));
+				}
+				properties.setProperty("postgres.urls", String.join(",", urls));
+			}
+			// replicas of the first server, for read routing tests
+			final List<String> replicaUrls = new ArrayList<>();
+			for (final PostgresEmbeddedServer replica : servers.get(0).getReplicas()) {
+				replicaUrls.add(replica.getJdbcUrl(this.username, "postgres"));
+				properties.setProperty("postgres.replica.url." + replicaUrls.size(),
+						replicaUrls.get(replicaUrls.size() - 1));
+			}
+			if (!replicaUrls.isEmpty()) {
+				properties.setProperty("postgres.replica.urls", String.join(",", replicaUrls));
+			}
+			// made available to the next goals of the build
+			this.getPluginContext().put(SERVER_CONTEXT_KEY, this.server);
+			this.getPluginContext().put(SERVERS_CONTEXT_KEY, servers);
 		} catch (final IOException e) {
 			this.getLog().error(e.getMessage());
 			throw new MojoExecutionException("Unable to start the server.", e);
 		}
 	}
 
+	/**
+	 * Start the servers concurrently, stopping the started ones if any fails.
+	 */
+	private List<PostgresEmbeddedServer> startServers() throws IOException {
+		if (this.instances <= 1) {
+			return Collections.singletonList(this.startServer(1));
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(this.instances);
+		try {
+			final List<Future<PostgresEmbeddedServer>> startups = new ArrayList<>();
+			for (int instance = 1; instance <= this.instances; instance++) {
+				final int number = instance;
+				startups.add(executor.submit(() -> this.startServer(number)));
+			}
+			final List<PostgresEmbeddedServer> servers = new ArrayList<>();
+			IOException failure = null;
+			for (final Future<PostgresEmbeddedServer> startup : startups) {
+				try {
+					servers.add(startup.get());
+				} catch (final ExecutionException e) {
+					failure = failure == null ? new IOException("Unable to start all the servers.", e.getCause())
+							: failure;
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					failure = new InterruptedIOException("Interrupted while starting the servers");
+				}
+			}
+			if (failure != null) {
+				// shared servers are left to the end of the build
+				if (!this.shared) {
+					servers.forEach(PostgresEmbeddedServer::closeAsync);
+				}
+				throw failure;
+			}
+			this.getLog().info(this.instances + " POSTGRES servers started");
+			return servers;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private PostgresEmbeddedServer startServer(final int instance) throws IOException {
+		return this.shared
+				? SharedServerRegistry.acquire(this.getSharedServerKey(instance), () -> this.buildServer(instance))
+				: this.buildServer(instance);
+	}
+
+	private PostgresEmbeddedServer buildServer(final int instance) throws IOException {
+		final PostgresEmbeddedServer postgresServer = this.createServerBuilder(instance).build();
+		final Map<String, String> connectionConfig = new HashMap<>();
+		// connectionConfig.put("-U", "postgres");
+
+		// TODO add connection config from mojo parameter
+		postgresServer.start(connectionConfig);
+		return postgresServer;
+	}
+
 }
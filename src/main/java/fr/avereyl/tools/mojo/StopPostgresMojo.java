@@ -16,11 +16,19 @@
 package fr.avereyl.tools.mojo;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
 
 import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
 
@@ -32,22 +40,80 @@ import fr.avereyl.tools.postgres.PostgresEmbeddedServer;
 @Mojo(name = "stop", defaultPhase = LifecyclePhase.POST_INTEGRATION_TEST, requiresProject = false)
 public class StopPostgresMojo extends AbstractPostgresMojo {
 
+	/**
+	 * Whether to return as soon as the shutdown is requested, the end of the
+	 * shutdown and the data directory deletion being left to a background reaper.
+	 */
+	@Parameter(property = "postgres.stop.async")
+	public boolean async;
+
 	/*
 	 * (non-Javadoc)
 	 *
 	 * @see fr.avereyl.tools.AbstractPostgresMojo#doExecute()
 	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	protected void doExecute() throws MojoExecutionException, MojoFailureException {
 		try {
-			this.server = PostgresEmbeddedServer.builder()
-					// build server according mojo parameters
-					.port(this.port).pgdir(this.pgdir).datadir(this.datadir).build();
-			this.server.close();
+			// the servers started in this build (if any) know how they were launched
+			this.getPluginContext().remove(SERVER_CONTEXT_KEY);
+			List<PostgresEmbeddedServer> servers = (List<PostgresEmbeddedServer>) this.getPluginContext()
+					.remove(SERVERS_CONTEXT_KEY);
+			if (this.shared) {
+				// stopped once released by every module, or along with the last one
+				for (int instance = 1; instance <= Math.max(1, this.instances); instance++) {
+					SharedServerRegistry.release(this.getSharedServerKey(instance), this.isLastReactorProject());
+				}
+				return;
+			}
+			if (servers == null) {
+				servers = new ArrayList<>();
+				for (int instance = 1; instance <= Math.max(1, this.instances); instance++) {
+					// configured as started, to attach to the postmaster kept alive (if any)
+					servers.add(this.createServerBuilder(instance).build());
+				}
+			}
+			this.server = servers.get(0);
+			if (this.async) {
+				servers.forEach(PostgresEmbeddedServer::closeAsync);
+			} else if (servers.size() == 1) {
+				this.server.close();
+			} else {
+				this.stopServers(servers);
+			}
 		} catch (final IOException e) {
 			this.getLog().error(e.getMessage());
 			throw new MojoExecutionException("Unable to stop the server.", e);
 		}
 	}
 
+	/**
+	 * Stop the servers concurrently.
+	 */
+	private void stopServers(final List<PostgresEmbeddedServer> servers) throws IOException {
+		final ExecutorService executor = Executors.newFixedThreadPool(servers.size());
+		try {
+			final List<Future<Void>> shutdowns = new ArrayList<>();
+			for (final PostgresEmbeddedServer postgresServer : servers) {
+				shutdowns.add(executor.submit(() -> {
+					postgresServer.close();
+					return null;
+				}));
+			}
+			for (final Future<Void> shutdown : shutdowns) {
+				try {
+					shutdown.get();
+				} catch (final ExecutionException e) {
+					throw new IOException("Unable to stop all the servers.", e.getCause());
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while stopping the servers");
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 }
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.tukaani.xz.XZInputStream;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+
+/**
+ * Compression formats supported for POSTGRES binary tar archives, detected from
+ * their magic bytes.
+ *
+ * @author guillaume
+ *
+ */
+public enum ArchiveCodec {
+
+	/**
+	 * Zstandard format: bigger archives, (much) faster decompression.
+	 */
+	ZSTD("tzst", "28b52ffd") {
+		@Override
+		public InputStream decompress(final InputStream compressed) throws IOException {
+			return new ZstdInputStream(compressed);
+		}
+	},
+
+	/**
+	 * XZ format: smallest archives, slow decompression (unless multi-block).
+	 */
+	XZ("txz", "fd377a585a00") {
+		@Override
+		public InputStream decompress(final InputStream compressed) throws IOException {
+			return new XZInputStream(compressed);
+		}
+	};
+
+	private final String extension;
+	private final byte[] magic;
+
+	ArchiveCodec(final String extension, final String hexMagic) {
+		this.extension = extension;
+		try {
+			this.magic = Hex.decodeHex(hexMagic);
+		} catch (final DecoderException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * @return the extension of archives compressed with this codec (txz...)
+	 */
+	public String getExtension() {
+		return this.extension;
+	}
+
+	/**
+	 * Wrap the given compressed stream into a decompressing one.
+	 *
+	 * @param compressed
+	 *            the compressed stream
+	 * @return the decompressed stream
+	 */
+	public abstract InputStream decompress(InputStream compressed) throws IOException;
+
+	/**
+	 * Detect the codec of the given archive from its first bytes.
+	 *
+	 * @param archive
+	 *            a compressed archive
+	 * @return the codec
+	 * @throws IOException
+	 *             if the archive cannot be read or its format is not supported
+	 */
+	public static ArchiveCodec detect(final Path archive) throws IOException {
+		final byte[] header = new byte[16];
+		int length = 0;
+		try (InputStream in = Files.newInputStream(archive)) {
+			int read;
+			while (length < header.length && (read = in.read(header, length, header.length - length)) != -1) {
+				length += read;
+			}
+		}
+		for (final ArchiveCodec codec : values()) {
+			if (length >= codec.magic.length
+					&& Arrays.equals(codec.magic, Arrays.copyOf(header, codec.magic.length))) {
+				return codec;
+			}
+		}
+		throw new IOException("Unsupported archive format for " + archive);
+	}
+
+}
@@ -17,16 +17,67 @@ package fr.avereyl.tools.postgres;
 
 import static java.lang.String.format;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Optional;
+import java.util.jar.JarEntry;
 
 /**
- * Resolves pre-bundled binaries from within the JAR file.
+ * Resolves pre-bundled binaries from within the JAR file. Archives are looked
+ * up for each supported {@link ArchiveCodec} (fastest to decompress first):
+ * postgresql-&lt;system&gt;-&lt;hardware&gt;.tzst then .txz
  */
 public class BundledPostgresBinaryResolver implements PostgresBinaryResolver {
 
 	@Override
-    public InputStream getPostgresBinary(String system, String machineHardware) {
-        return PostgresEmbeddedServer.class.getResourceAsStream(format("/postgresql-%s-%s.txz", system, machineHardware));
+    public InputStream getPostgresBinary(String system, String machineHardware) throws IOException {
+        final URL resource = getResource(system, machineHardware);
+        return resource == null ? null : resource.openStream();
+    }
+
+    /**
+     * Fingerprints the bundled archive from the JAR file (path, size,
+     * modification date) and the archive entry (size, CRC), or from the archive
+     * file itself when not packaged.
+     */
+    @Override
+    public Optional<String> getPostgresBinaryFingerprint(String system, String machineHardware) throws IOException {
+        final URL resource = getResource(system, machineHardware);
+        if (resource == null) {
+            return Optional.empty();
+        }
+        try {
+            if ("jar".equals(resource.getProtocol())) {
+                final JarURLConnection connection = (JarURLConnection) resource.openConnection();
+                final File jar = new File(connection.getJarFileURL().toURI());
+                final JarEntry entry = connection.getJarEntry();
+                return Optional.of(format("%s|%d|%d|%s|%d|%d", jar.getAbsolutePath(), jar.length(),
+                        jar.lastModified(), entry.getName(), entry.getSize(), entry.getCrc()));
+            }
+            if ("file".equals(resource.getProtocol())) {
+                final File archive = new File(resource.toURI());
+                return Optional.of(format("%s|%d|%d", archive.getAbsolutePath(), archive.length(),
+                        archive.lastModified()));
+            }
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            throw new IOException("Could not locate " + resource, e);
+        }
+        return Optional.empty();
+    }
+
+    private URL getResource(String system, String machineHardware) {
+        for (final ArchiveCodec codec : ArchiveCodec.values()) {
+            final URL resource = PostgresEmbeddedServer.class
+                    .getResource(format("/postgresql-%s-%s.%s", system, machineHardware, codec.getExtension()));
+            if (resource != null) {
+                return resource;
+            }
+        }
+        return null;
     }
 
     @Override
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sizes memory, connection and parallelism settings from the cores and memory
+ * available to the build (cgroup limits included) and the expected number of
+ * clients (test forks).
+ * <p>
+ * Only a quarter of the memory is given to the servers, the rest being left to
+ * the build and test JVMs.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+final class PostgresAutoTuner {
+
+	private static final long MB = 1024 * 1024;
+	private static final int CONNECTIONS_PER_FORK = 10;
+	private static final int RESERVED_CONNECTIONS = 10;
+	/**
+	 * cgroup v1 reports "no limit" as a huge page-aligned value.
+	 */
+	private static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+	private final int cores;
+	private final long memory;
+
+	PostgresAutoTuner() {
+		this(Runtime.getRuntime().availableProcessors(), getAvailableMemory());
+	}
+
+	/**
+	 * @param cores
+	 *            the available cores
+	 * @param memory
+	 *            the available memory (in bytes)
+	 */
+	PostgresAutoTuner(final int cores, final long memory) {
+		this.cores = cores;
+		this.memory = memory;
+	}
+
+	/**
+	 * @param forks
+	 *            the number of clients (test forks) of the server
+	 * @param servers
+	 *            the number of servers sharing the host
+	 * @return the tuned settings
+	 */
+	Map<String, String> tune(final int forks, final int servers) {
+		final int clients = Math.max(1, forks);
+		final long budget = this.memory / 4 / Math.max(1, servers);
+		final long sharedBuffers = clamp(budget / 4, 16 * MB, 2048 * MB);
+		final int maxConnections = (int) clamp(clients * CONNECTIONS_PER_FORK + RESERVED_CONNECTIONS, 20, 300);
+		// each client runs a query at a time, of up to a couple of sorts or hashes
+		final long workMem = clamp((budget - sharedBuffers) / (clients * 4), 4 * MB, 256 * MB);
+
+		final Map<String, String> settings = new LinkedHashMap<>();
+		settings.put("shared_buffers", sharedBuffers / MB + "MB");
+		settings.put("work_mem", workMem / MB + "MB");
+		settings.put("maintenance_work_mem", clamp(budget / 16, 16 * MB, 1024 * MB) / MB + "MB");
+		settings.put("max_connections", String.valueOf(maxConnections));
+		settings.put("max_worker_processes", String.valueOf(Math.max(4, this.cores)));
+		// parallel queries only pay off with cores left idle by the clients
+		settings.put("max_parallel_workers_per_gather",
+				String.valueOf(clamp(this.cores / clients - 1, 0, 4)));
+		log.info("Auto-tuned for {} cores, {} MB of memory, {} client(s) and {} server(s): {}", this.cores,
+				this.memory / MB, clients, servers, settings);
+		return settings;
+	}
+
+	private static long clamp(final long value, final long min, final long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * @return the physical memory, bounded by the cgroup memory limit (if any)
+	 */
+	static long getAvailableMemory() {
+		long memory = getPhysicalMemory();
+		final Optional<Long> limit = getCgroupMemoryLimit();
+		if (limit.isPresent() && limit.get() < memory) {
+			log.debug("Memory limited to {} MB by cgroup", limit.get() / MB);
+			memory = limit.get();
+		}
+		return memory;
+	}
+
+	private static long getPhysicalMemory() {
+		try {
+			// com.sun.management is not available on every JVM
+			return (Long) Class.forName("com.sun.management.OperatingSystemMXBean")
+					.getMethod("getTotalPhysicalMemorySize").invoke(ManagementFactory.getOperatingSystemMXBean());
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			log.debug("Physical memory unknown, assuming 1 GB", e);
+			return 1024 * MB;
+		}
+	}
+
+	/**
+	 * @return the memory limit of the cgroup of this process (v2, then v1)
+	 */
+	private static Optional<Long> getCgroupMemoryLimit() {
+		final File cgroups = new File("/proc/self/cgroup");
+		if (!cgroups.isFile()) {
+			return Optional.empty();
+		}
+		try {
+			final List<String> lines = Files.readAllLines(cgroups.toPath(), StandardCharsets.UTF_8);
+			for (final String line : lines) {
+				// hierarchy-ID:controller-list:cgroup-path
+				final String[] fields = line.split(":", 3);
+				if (fields.length < 3) {
+					continue;
+				}
+				Optional<Long> limit = Optional.empty();
+				if (fields[0].equals("0") && fields[1].isEmpty()) {
+					limit = readLimit(new File("/sys/fs/cgroup" + fields[2], "memory.max"),
+							new File("/sys/fs/cgroup", "memory.max"));
+				} else if (Arrays.asList(fields[1].split(",")).contains("memory")) {
+					limit = readLimit(new File("/sys/fs/cgroup/memory" + fields[2], "memory.limit_in_bytes"),
+							new File("/sys/fs/cgroup/memory", "memory.limit_in_bytes"));
+				}
+				if (limit.isPresent()) {
+					return limit;
+				}
+			}
+		} catch (final IOException | NumberFormatException e) {
+			log.debug("Could not read cgroup memory limit", e);
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @return the limit stored in the first existing file, empty if unlimited
+	 */
+	private static Optional<Long> readLimit(final File... files) throws IOException {
+		for (final File file : files) {
+			if (file.isFile()) {
+				final String value = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+				if (value.equals("max")) {
+					return Optional.empty();
+				}
+				final long limit = Long.parseLong(value);
+				return limit < UNLIMITED ? Optional.of(limit) : Optional.empty();
+			}
+		}
+		return Optional.empty();
+	}
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Persistent index (stored in the working directory) of the directories where
+ * POSTGRES binaries have already been prepared, keyed by binary fingerprints.
+ * <p>
+ * Allows skipping the reading and hashing of an archive already extracted.
+ * Losing an entry (updates from concurrent processes, corrupted file...) only
+ * means the archive gets hashed again.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+class PostgresBinaryFingerprintIndex {
+
+	private static final String INDEX_FILE_NAME = "epg-fingerprints.properties";
+
+	private final File workingDirectory;
+	private final Path indexFile;
+
+	PostgresBinaryFingerprintIndex(final File workingDirectory) {
+		this.workingDirectory = workingDirectory;
+		this.indexFile = new File(workingDirectory, INDEX_FILE_NAME).toPath();
+	}
+
+	/**
+	 * Look up the directory prepared for the given fingerprint.
+	 *
+	 * @param fingerprint
+	 *            a binary fingerprint
+	 * @return the directory if known and completely extracted
+	 */
+	Optional<File> lookup(final String fingerprint) {
+		final String directoryName = this.load().getProperty(this.key(fingerprint));
+		if (directoryName == null) {
+			return Optional.empty();
+		}
+		final File postgresDirectory = new File(this.workingDirectory, directoryName);
+		return new File(postgresDirectory, ".exists").exists() ? Optional.of(postgresDirectory) : Optional.empty();
+	}
+
+	/**
+	 * Record the directory prepared for the given fingerprint. The index file is
+	 * replaced atomically so concurrent readers never see a partial file.
+	 *
+	 * @param fingerprint
+	 *            a binary fingerprint
+	 * @param postgresDirectory
+	 *            the directory where the binaries have been extracted
+	 */
+	void record(final String fingerprint, final File postgresDirectory) {
+		// binaries of different resolvers may be prepared concurrently
+		synchronized (PostgresBinaryFingerprintIndex.class) {
+			final Properties index = this.load();
+			index.setProperty(this.key(fingerprint), postgresDirectory.getName());
+			Path temporaryIndex = null;
+			try {
+				temporaryIndex = Files.createTempFile(this.workingDirectory.toPath(), INDEX_FILE_NAME, ".tmp");
+				try (OutputStream out = Files.newOutputStream(temporaryIndex)) {
+					index.store(out, "POSTGRES binaries fingerprints");
+				}
+				Files.move(temporaryIndex, this.indexFile, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (final IOException e) {
+				log.warn("Could not update fingerprint index {}", this.indexFile, e);
+				if (temporaryIndex != null) {
+					FileUtils.deleteQuietly(temporaryIndex.toFile());
+				}
+			}
+		}
+	}
+
+	private Properties load() {
+		final Properties index = new Properties();
+		try (InputStream in = Files.newInputStream(this.indexFile)) {
+			index.load(in);
+		} catch (final NoSuchFileException e) {
+			// no index yet
+		} catch (final IOException | IllegalArgumentException e) {
+			log.warn("Ignoring unreadable fingerprint index {}", this.indexFile, e);
+		}
+		return index;
+	}
+
+	private String key(final String fingerprint) {
+		return DigestUtils.sha256Hex(fingerprint);
+	}
+
+}
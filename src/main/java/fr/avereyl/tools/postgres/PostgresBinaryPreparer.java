@@ -15,41 +15,58 @@
  ******************************************************************************/
 package fr.avereyl.tools.postgres;
 
-import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousFileChannel;
-import java.nio.channels.Channel;
-import java.nio.channels.CompletionHandler;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.Phaser;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.io.IOUtils;
-import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 
 import fr.avereyl.tools.traits.FileSystemAware;
 import fr.avereyl.tools.traits.OperatingSystemAware;
+import fr.avereyl.tools.utils.ParallelFileWriter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -62,41 +79,103 @@ import lombok.extern.slf4j.Slf4j;
 public class PostgresBinaryPreparer implements OperatingSystemAware, FileSystemAware {
 
 	private static final String LOCK_FILE_NAME = "epg-lock";
-	private static final Lock BINARIES_PREPARATION_LOCK = new ReentrantLock();
-	private static final Map<PostgresBinaryResolver, File> PREPARED_BINARIES = new HashMap<>();
+	private static final String ARCHIVE_PREFIX = "epg-archive-";
+	private static final String ARCHIVE_SUFFIX = ".tmp";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final long UNPACK_HEARTBEAT_MS = 500;
+	private static final long DEFAULT_UNPACK_TIMEOUT_S = 60;
+	private static final ConcurrentMap<PostgresBinaryResolver, CompletableFuture<File>> PREPARED_BINARIES = //
+			new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Lock> LOCAL_UNPACK_LOCKS = new ConcurrentHashMap<>();
 
+	/**
+	 * Prepare (if needed) POSTGRES binaries of the given resolver. Binaries of a
+	 * resolver are prepared once per JVM: concurrent calls for the same resolver
+	 * wait for the same preparation, calls for different resolvers run in
+	 * parallel. A failed preparation is forgotten so that it can be retried.
+	 *
+	 * @param binaryResolver
+	 *            the resolver of the binaries to prepare
+	 * @param overriddenWorkingDirectory
+	 *            the directory where to extract binaries (if not the default
+	 *            working directory)
+	 * @return the directory where POSTGRES binaries are available
+	 */
 	public File prepare(final PostgresBinaryResolver binaryResolver, final Optional<File> overriddenWorkingDirectory) {
-		BINARIES_PREPARATION_LOCK.lock();
+		final CompletableFuture<File> preparation = new CompletableFuture<>();
+		final CompletableFuture<File> existingPreparation = PREPARED_BINARIES.putIfAbsent(binaryResolver,
+				preparation);
+		// binaries already prepared (or being prepared) -> return POSTGRES folder
+		if (existingPreparation != null) {
+			return this.awaitPreparation(existingPreparation);
+		}
 		try {
-			// binaries already prepared -> return POSTGRES folder
-			if (PREPARED_BINARIES.containsKey(binaryResolver)) {
-				return PREPARED_BINARIES.get(binaryResolver);
-			}
-			// preparing binaries...
-			final String system = this.getOS();
-			final String machineHardware = this.getArchitecture();
-			log.info("Detected a {} {} system.", system, machineHardware);
-			// getting binary stream for the detected system (through the resolver)
-			final InputStream postgresBinaryStream;
-			try {
-				postgresBinaryStream = binaryResolver.getPostgresBinary(system, machineHardware);
-			} catch (final IOException e) {
-				throw new ExceptionInInitializerError(e);
+			final File postgresDirectory = this.prepareBinaries(binaryResolver, overriddenWorkingDirectory);
+			preparation.complete(postgresDirectory);
+			return postgresDirectory;
+		} catch (final RuntimeException | Error e) {
+			PREPARED_BINARIES.remove(binaryResolver, preparation);
+			preparation.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private File awaitPreparation(final CompletableFuture<File> preparation) {
+		try {
+			return preparation.join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
-			if (postgresBinaryStream == null) {
-				throw new IllegalStateException("No POSTGRES binary found for " + system + " / " + machineHardware);
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
 			}
+			throw e;
+		}
+	}
 
-			File postgresDirectory;
-			// copy found binary into the working directory
-			try (DigestInputStream postgresArchiveData = new DigestInputStream(postgresBinaryStream,
-					MessageDigest.getInstance("MD5"));
-					ByteArrayOutputStream binaryCopyOutputStream = new ByteArrayOutputStream()) {
-				IOUtils.copy(postgresArchiveData, binaryCopyOutputStream);
+	private File prepareBinaries(final PostgresBinaryResolver binaryResolver,
+			final Optional<File> overriddenWorkingDirectory) {
+		// preparing binaries...
+		final String system = this.getOS();
+		final String machineHardware = this.getArchitecture();
+		log.info("Detected a {} {} system.", system, machineHardware);
+		final File workingDirectory = overriddenWorkingDirectory.isPresent() ? overriddenWorkingDirectory.get()
+				: this.getWorkingDirectory();
+		// binaries already extracted by a previous build -> return POSTGRES folder
+		// without reading the binary
+		final PostgresBinaryFingerprintIndex fingerprintIndex = new PostgresBinaryFingerprintIndex(workingDirectory);
+		final Optional<String> fingerprint = this.getFingerprint(binaryResolver, system, machineHardware);
+		final Optional<File> fingerprintedDirectory = fingerprint.flatMap(fingerprintIndex::lookup);
+		if (fingerprintedDirectory.isPresent()) {
+			log.info("Postgres binaries at {} (fingerprint match)", fingerprintedDirectory.get());
+			return fingerprintedDirectory.get();
+		}
+		// getting binary stream for the detected system (through the resolver)
+		final InputStream postgresBinaryStream;
+		try {
+			postgresBinaryStream = binaryResolver.getPostgresBinary(system, machineHardware);
+		} catch (final IOException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+		if (postgresBinaryStream == null) {
+			throw new IllegalStateException("No POSTGRES binary found for " + system + " / " + machineHardware);
+		}
 
-				final String postgresDigest = Hex.encodeHexString(postgresArchiveData.getMessageDigest().digest());
-				final File workingDirectory = overriddenWorkingDirectory.isPresent() ? overriddenWorkingDirectory.get()
-						: this.getWorkingDirectory();
+		File postgresDirectory;
+		// stream found binary into a temporary archive of the working directory,
+		// computing its digest on the fly (memory usage does not depend on archive size)
+		try {
+			this.mkdirs(workingDirectory);
+			final Path archive = Files.createTempFile(workingDirectory.toPath(), ARCHIVE_PREFIX, ARCHIVE_SUFFIX);
+			try {
+				final String postgresDigest;
+				try (DigestInputStream postgresArchiveData = new DigestInputStream(postgresBinaryStream,
+						MessageDigest.getInstance("MD5"))) {
+					Files.copy(postgresArchiveData, archive, StandardCopyOption.REPLACE_EXISTING);
+					postgresDigest = Hex.encodeHexString(postgresArchiveData.getMessageDigest().digest());
+				}
 				postgresDirectory = new File(workingDirectory, String.format("PG-%s", postgresDigest));
 				// creating the directory where to extract POSTGRES binaries (nothing done if
 				// directory already exists)
@@ -105,76 +184,280 @@ public class PostgresBinaryPreparer implements OperatingSystemAware, FileSystemA
 				final File postgresDirectoryExists = new File(postgresDirectory, ".exists");
 				// only in case no .exists file present in the directory
 				if (!postgresDirectoryExists.exists()) {
-					this.unpack(binaryCopyOutputStream, postgresDirectory, unpackLockFile, postgresDirectoryExists);
+					this.unpack(archive, postgresDirectory, unpackLockFile, postgresDirectoryExists);
 				}
-			} catch (final IOException | NoSuchAlgorithmException e) {
-				throw new ExceptionInInitializerError(e);
-			} catch (final InterruptedException ie) {
-				Thread.currentThread().interrupt();
-				throw new ExceptionInInitializerError(ie);
+			} finally {
+				Files.deleteIfExists(archive);
 			}
+		} catch (final IOException | NoSuchAlgorithmException e) {
+			throw new ExceptionInInitializerError(e);
+		}
 
-			PREPARED_BINARIES.put(binaryResolver, postgresDirectory);
-			log.info("Postgres binaries at {}", postgresDirectory);
-			return postgresDirectory;
+		if (fingerprint.isPresent()) {
+			fingerprintIndex.record(fingerprint.get(), postgresDirectory);
+		}
+		log.info("Postgres binaries at {}", postgresDirectory);
+		return postgresDirectory;
+	}
 
-		} finally {
-			BINARIES_PREPARATION_LOCK.unlock();
+	/**
+	 * Fingerprint of the binary, prefixed by the resolver identity.
+	 *
+	 * @return the fingerprint, empty if the resolver cannot provide one
+	 */
+	private Optional<String> getFingerprint(final PostgresBinaryResolver binaryResolver, final String system,
+			final String machineHardware) {
+		try {
+			return binaryResolver.getPostgresBinaryFingerprint(system, machineHardware)
+					.map(fingerprint -> binaryResolver.getClass().getName() + "|" + fingerprint);
+		} catch (final IOException e) {
+			log.warn("Could not fingerprint POSTGRES binary, it will be hashed", e);
+			return Optional.empty();
 		}
 	}
 
-	private void unpack(final ByteArrayOutputStream binaryCopyOutputStream, final File postgresDirectory,
-			final File unpackLockFile, final File postgresDirectoryExists) throws InterruptedException, IOException {
-		try (FileOutputStream lockStream = new FileOutputStream(unpackLockFile);
-				FileLock unpackLock = lockStream.getChannel().tryLock()) {
-			if (unpackLock != null) {
-				// unpacking lock acquired
+	/**
+	 * Unpack the archive unless another process (or thread) does it. The unpack
+	 * lock is handed over as soon as the extracting process releases it. While
+	 * extracting, the lock file is touched periodically: waiters give up only
+	 * when it has not been touched for the unpack timeout.
+	 */
+	private void unpack(final Path archive, final File postgresDirectory, final File unpackLockFile,
+			final File postgresDirectoryExists) throws IOException {
+		// file locks are held by the whole JVM: threads of this JVM must wait on their own
+		final Lock localUnpackLock = LOCAL_UNPACK_LOCKS.computeIfAbsent(postgresDirectory.getAbsolutePath(),
+				path -> new ReentrantLock());
+		localUnpackLock.lock();
+		try (FileChannel lockChannel = FileChannel.open(unpackLockFile.toPath(), CREATE, WRITE)) {
+			final FileLock unpackLock = this.acquireUnpackLock(lockChannel, unpackLockFile);
+			try {
+				if (postgresDirectoryExists.exists()) {
+					// the other guy unpacked for us.
+					log.info("POSTGRES extracted by another process");
+					return;
+				}
+				// the lock file may be old: touched before the cleanup not to look stalled to waiters
+				unpackLockFile.setLastModified(System.currentTimeMillis());
+				final ScheduledExecutorService heartbeat = Executors
+						.newSingleThreadScheduledExecutor(this.daemonThreadFactory("epg-unpack-heartbeat"));
 				try {
-					if (postgresDirectoryExists.exists()) {
-						throw new IllegalStateException(
-								"unpack lock acquired but .exists file is present " + postgresDirectoryExists);
-					}
+					heartbeat.scheduleAtFixedRate(() -> unpackLockFile.setLastModified(System.currentTimeMillis()),
+							UNPACK_HEARTBEAT_MS, UNPACK_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+					// remove what a failed extraction may have left
+					this.cleanPartialExtraction(postgresDirectory, unpackLockFile);
 					log.info("Extracting POSTGRES...");
-					try (ByteArrayInputStream bais = new ByteArrayInputStream(binaryCopyOutputStream.toByteArray())) {
-						this.extractTxz(bais, postgresDirectory.getPath());
-					}
-					if (!postgresDirectoryExists.createNewFile()) {
-						throw new IllegalStateException("couldn't make .exists file " + postgresDirectoryExists);
+					this.extract(archive, postgresDirectory);
+				} finally {
+					heartbeat.shutdownNow();
+				}
+				if (!postgresDirectoryExists.createNewFile()) {
+					throw new IllegalStateException("couldn't make .exists file " + postgresDirectoryExists);
+				}
+			} finally {
+				unpackLock.release();
+			}
+		} finally {
+			localUnpackLock.unlock();
+		}
+	}
+
+	/**
+	 * Acquire the unpack lock, waiting for another process to release it as long
+	 * as it makes progress (touching the lock file).
+	 */
+	private FileLock acquireUnpackLock(final FileChannel lockChannel, final File unpackLockFile)
+			throws IOException {
+		final FileLock unpackLock = lockChannel.tryLock();
+		if (unpackLock != null) {
+			return unpackLock;
+		}
+		// the other guy is unpacking for us.
+		final Duration timeout = this.getUnpackTimeout();
+		log.info("Waiting for another process extracting POSTGRES (giving up after {} without progress)...",
+				timeout);
+		final AtomicBoolean stalled = new AtomicBoolean();
+		final ScheduledExecutorService watchdog = Executors
+				.newSingleThreadScheduledExecutor(this.daemonThreadFactory("epg-unpack-watchdog"));
+		try {
+			watchdog.scheduleWithFixedDelay(() -> {
+				if (System.currentTimeMillis() - unpackLockFile.lastModified() > timeout.toMillis()) {
+					stalled.set(true);
+					// closing the channel aborts the pending lock
+					try {
+						lockChannel.close();
+					} catch (final IOException e) {
+						log.debug("Could not close the unpack lock channel", e);
 					}
-				} catch (final Exception e) {
-					log.error("while unpacking Postgres", e);
 				}
-			} else {
-				// the other guy is unpacking for us.
-				int maxAttempts = 60;
-				while (!postgresDirectoryExists.exists() && --maxAttempts > 0) {
-					Thread.sleep(1000L);
+			}, UNPACK_HEARTBEAT_MS, UNPACK_HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+			return lockChannel.lock();
+		} catch (final AsynchronousCloseException e) {
+			if (stalled.get()) {
+				throw new IllegalStateException(
+						String.format("Postgres unpacking made no progress for %s, giving up!", timeout), e);
+			}
+			throw e;
+		} finally {
+			watchdog.shutdownNow();
+		}
+	}
+
+	private void cleanPartialExtraction(final File postgresDirectory, final File unpackLockFile) throws IOException {
+		final File[] children = postgresDirectory.listFiles(child -> !child.equals(unpackLockFile));
+		if (children != null) {
+			for (final File child : children) {
+				// not FileUtils.forceDelete: it leaves the dangling symbolic links of a partial extraction
+				if (Files.isDirectory(child.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+					this.deleteDirectory(child);
+				} else {
+					Files.deleteIfExists(child.toPath());
 				}
-				if (!postgresDirectoryExists.exists()) {
-					throw new IllegalStateException(
-							"Waited 60 seconds for postgres to be unpacked but it never finished!");
+			}
+		}
+	}
+
+	/**
+	 * Time after which waiting for another process to unpack POSTGRES is aborted
+	 * if it did not make any progress, from system property pmp.unpack-timeout (in
+	 * seconds, if defined). Fallbacks to 60 seconds.
+	 *
+	 * @return The unpack timeout
+	 */
+	private Duration getUnpackTimeout() {
+		return Duration.ofSeconds(Long.getLong("pmp.unpack-timeout", DEFAULT_UNPACK_TIMEOUT_S));
+	}
+
+	private ThreadFactory daemonThreadFactory(final String name) {
+		return runnable -> {
+			final Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Extract the given archive into the given directory, its compression format
+	 * being detected from its magic bytes. Multi-block XZ archives are first
+	 * decompressed block by block concurrently into a temporary tar file.
+	 *
+	 * @param archive
+	 *            The archive with the postgres binaries.
+	 * @param postgresDirectory
+	 *            The directory to extract the content to.
+	 */
+	private void extract(final Path archive, final File postgresDirectory) throws IOException {
+		final ArchiveCodec codec = ArchiveCodec.detect(archive);
+		final int blockCount = codec == ArchiveCodec.XZ ? this.getXzBlockCount(archive) : 1;
+		if (blockCount > 1) {
+			final Path tar = Files.createTempFile(postgresDirectory.getParentFile().toPath(), ARCHIVE_PREFIX,
+					ARCHIVE_SUFFIX);
+			try {
+				log.info("Decompressing {} XZ blocks concurrently...", blockCount);
+				this.decompressXzBlocks(archive, tar);
+				try (InputStream tarStream = this.openArchive(tar)) {
+					this.extractTar(tarStream, postgresDirectory.getPath());
 				}
+			} finally {
+				Files.deleteIfExists(tar);
 			}
+		} else {
+			log.info("Decompressing {} archive...", codec);
+			try (InputStream tarStream = new BufferedInputStream(codec.decompress(this.openArchive(archive)),
+					BUFFER_SIZE)) {
+				this.extractTar(tarStream, postgresDirectory.getPath());
+			}
+		}
+	}
+
+	private InputStream openArchive(final Path archive) throws IOException {
+		return new BufferedInputStream(Channels.newInputStream(FileChannel.open(archive, READ)), BUFFER_SIZE);
+	}
+
+	/**
+	 * Number of blocks of the given XZ archive, read from its index.
+	 *
+	 * @return the number of blocks, 1 if the index cannot be read (the archive
+	 *         is then decompressed as a stream)
+	 */
+	private int getXzBlockCount(final Path archive) {
+		try (SeekableXZInputStream xzIn = new SeekableXZInputStream(new SeekableFileInputStream(archive.toFile()))) {
+			return xzIn.getBlockCount();
+		} catch (final IOException e) {
+			log.debug("Could not read XZ index of {}", archive, e);
+			return 1;
+		}
+	}
+
+	/**
+	 * Decompress a multi-block XZ archive into the given tar file. Each worker
+	 * owns a seekable stream and decompresses the next available block at its
+	 * own position of the tar file.
+	 *
+	 * @param archive
+	 *            The multi-block XZ archive.
+	 * @param tar
+	 *            The (existing) file to decompress to.
+	 */
+	private void decompressXzBlocks(final Path archive, final Path tar) throws IOException {
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final int workerCount = this.getExtractionThreads();
+		final ExecutorService workers = Executors.newFixedThreadPool(workerCount);
+		try (FileChannel tarChannel = FileChannel.open(tar, WRITE)) {
+			final List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < workerCount; i++) {
+				results.add(workers.submit(() -> {
+					this.decompressNextXzBlocks(archive, tarChannel, nextBlock);
+					return null;
+				}));
+			}
+			for (final Future<?> result : results) {
+				result.get();
+			}
+		} catch (final ExecutionException e) {
+			throw new IOException("Could not decompress " + archive, e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decompressing " + archive);
 		} finally {
-			if (unpackLockFile.exists() && !unpackLockFile.delete()) {
-				log.error("could not remove lock file {}", unpackLockFile.getAbsolutePath());
+			workers.shutdownNow();
+		}
+	}
+
+	private void decompressNextXzBlocks(final Path archive, final FileChannel tarChannel,
+			final AtomicInteger nextBlock) throws IOException {
+		final byte[] buffer = new byte[CHUNK_SIZE];
+		try (SeekableXZInputStream xzIn = new SeekableXZInputStream(new SeekableFileInputStream(archive.toFile()))) {
+			int block;
+			while ((block = nextBlock.getAndIncrement()) < xzIn.getBlockCount()) {
+				xzIn.seekToBlock(block);
+				long position = xzIn.getBlockPos(block);
+				long remaining = xzIn.getBlockSize(block);
+				while (remaining > 0) {
+					final int read = xzIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (read == -1) {
+						throw new EOFException("Unexpected end of block " + block + " in " + archive);
+					}
+					final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+					while (chunk.hasRemaining()) {
+						position += tarChannel.write(chunk, position);
+					}
+					remaining -= read;
+				}
 			}
 		}
 	}
 
 	/**
-	 * Unpack archive compressed by tar with xz compression. By default system tar
-	 * is used (faster). If not found, then the java implementation takes place.
+	 * Unpack tar archive, files being written concurrently.
 	 *
 	 * @param stream
-	 *            A stream with the postgres binaries.
+	 *            A stream with the (uncompressed) tar archive.
 	 * @param targetDir
 	 *            The directory to extract the content to.
 	 */
-	private void extractTxz(final InputStream stream, final String targetDir) throws IOException {
-		try (XZInputStream xzIn = new XZInputStream(stream);
-				TarArchiveInputStream tarIn = new TarArchiveInputStream(xzIn)) {
-			final Phaser phaser = new Phaser(1);
+	private void extractTar(final InputStream stream, final String targetDir) throws IOException {
+		try (TarArchiveInputStream tarIn = new TarArchiveInputStream(stream);
+				ParallelFileWriter writer = new ParallelFileWriter(this.getExtractionThreads(), CHUNK_SIZE)) {
 			TarArchiveEntry entry;
 
 			while ((entry = tarIn.getNextTarEntry()) != null) {
@@ -185,42 +468,8 @@ public class PostgresBinaryPreparer implements OperatingSystemAware, FileSystemA
 					final Path target = FileSystems.getDefault().getPath(entry.getLinkName());
 					Files.createSymbolicLink(fsObject.toPath(), target);
 				} else if (entry.isFile()) {
-					final byte[] content = new byte[(int) entry.getSize()];
-					final int read = tarIn.read(content, 0, content.length);
-					if (read == -1) {
-						throw new IllegalStateException("could not read " + individualFile);
-					}
 					this.mkdirs(fsObject.getParentFile());
-
-					final AsynchronousFileChannel fileChannel = AsynchronousFileChannel.open(fsObject.toPath(),
-							CREATE_NEW, WRITE);
-					final ByteBuffer buffer = ByteBuffer.wrap(content);
-
-					phaser.register();
-
-					fileChannel.write(buffer, 0, fileChannel, new CompletionHandler<Integer, Channel>() {
-						@Override
-						public void completed(final Integer written, final Channel channel) {
-							this.closeChannel(channel);
-						}
-
-						@Override
-						public void failed(final Throwable error, final Channel channel) {
-							log.error("Could not write file {}", fsObject.getAbsolutePath(), error);
-							this.closeChannel(channel);
-						}
-
-						private void closeChannel(final Channel channel) {
-							try {
-								channel.close();
-							} catch (final IOException e) {
-								log.error("Unexpected error while closing the channel", e);
-							} finally {
-								phaser.arriveAndDeregister();
-							}
-						}
-					});
-
+					writer.write(fsObject.toPath(), tarIn, entry.getSize());
 				} else if (entry.isDirectory()) {
 					this.mkdirs(fsObject);
 				} else {
@@ -235,9 +484,18 @@ public class PostgresBinaryPreparer implements OperatingSystemAware, FileSystemA
 					}
 				}
 			}
-
-			phaser.arriveAndAwaitAdvance();
 		}
 	}
 
+	/**
+	 * Number of threads writing extracted files, from system property
+	 * pmp.extract-threads (if defined). Fallbacks to the number of available
+	 * processors.
+	 *
+	 * @return The number of writer threads
+	 */
+	private int getExtractionThreads() {
+		return Integer.getInteger("pmp.extract-threads", Runtime.getRuntime().availableProcessors());
+	}
+
 }
@@ -17,6 +17,7 @@ package fr.avereyl.tools.postgres;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 
 /**
  * A strategy for resolving PostgreSQL binaries.
@@ -38,4 +39,21 @@ public interface PostgresBinaryResolver {
 	 */
 	InputStream getPostgresBinary(String system, String machineHardware) throws IOException;
 
+	/**
+	 * Returns a fingerprint of the postgres binary for the given system and
+	 * hardware architecture, computed from cheap metadata (location, size,
+	 * modification date...) without reading the binary. When the fingerprint of
+	 * an already prepared binary matches, the binary is neither read nor hashed
+	 * again.
+	 * 
+	 * @param system
+	 *            a system identification (Darwin, Linux...)
+	 * @param machineHardware
+	 *            a machine hardware architecture (x86_64...)
+	 * @return the fingerprint, empty if unknown (the default)
+	 */
+	default Optional<String> getPostgresBinaryFingerprint(String system, String machineHardware) throws IOException {
+		return Optional.empty();
+	}
+
 }
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.time.StopWatch;
+
+import fr.avereyl.tools.traits.FileSystemAware;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A pristine cluster (output of initdb) cached next to the POSTGRES binaries,
+ * keyed by binary digest, encoding, superuser and locale configuration.
+ * <p>
+ * New data directories are copies of the template rather than the result of a
+ * new initdb run. Hard links cannot be used: POSTGRES rewrites its files in
+ * place, which would corrupt the template.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+class PostgresClusterTemplate implements FileSystemAware {
+
+	private static final String TEMPLATE_PREFIX = "INITDB-";
+
+	private final File templateDirectory;
+
+	/**
+	 * @param postgresDirectory
+	 *            the directory where the POSTGRES binaries are installed (named
+	 *            after their digest)
+	 * @param encoding
+	 *            the encoding of the cluster
+	 * @param superuser
+	 *            the superuser of the cluster
+	 * @param localeConfig
+	 *            the locale options of the cluster
+	 */
+	PostgresClusterTemplate(final File postgresDirectory, final String encoding, final String superuser,
+			final Map<String, String> localeConfig) {
+		final String key = DigestUtils.md5Hex(String.join("|", postgresDirectory.getName(), encoding, superuser,
+				new TreeMap<>(localeConfig).toString()));
+		this.templateDirectory = new File(postgresDirectory.getParentFile(), TEMPLATE_PREFIX + key);
+	}
+
+	/**
+	 * Create the given data directory from the template, creating the template
+	 * first if needed.
+	 *
+	 * @param dataDirectory
+	 *            the data directory to create
+	 * @param initializer
+	 *            runs initdb into a given (empty) directory
+	 * @throws IOException
+	 *             if the template cannot be created or copied
+	 */
+	void copyTo(final File dataDirectory, final Consumer<File> initializer) throws IOException {
+		if (!new File(this.templateDirectory, "PG_VERSION").exists()) {
+			this.create(initializer);
+		}
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		this.copyDirectory(this.templateDirectory, dataDirectory, PostgresEmbeddedServer::isCopiable);
+		// POSTGRES refuses to start on a data directory with group or world access
+		final PosixFileAttributeView view = Files.getFileAttributeView(dataDirectory.toPath(),
+				PosixFileAttributeView.class);
+		if (view != null) {
+			view.setPermissions(PosixFilePermissions.fromString("rwx------"));
+		}
+		log.info("Data directory {} copied from template {} in {}", dataDirectory, this.templateDirectory.getName(),
+				watch);
+	}
+
+	/**
+	 * Run initdb into a temporary directory then move it atomically, so a
+	 * template is either complete or missing. Concurrent creations may happen,
+	 * the first one moved wins.
+	 */
+	private void create(final Consumer<File> initializer) throws IOException {
+		final Path parent = this.templateDirectory.getParentFile().toPath();
+		final Path temporaryDirectory = Files.createTempDirectory(parent, this.templateDirectory.getName() + "-");
+		try {
+			initializer.accept(temporaryDirectory.toFile());
+			Files.move(temporaryDirectory, this.templateDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			log.info("Created initdb template {}", this.templateDirectory);
+		} catch (final IOException e) {
+			if (!new File(this.templateDirectory, "PG_VERSION").exists()) {
+				throw e;
+			}
+			log.debug("Initdb template {} created concurrently", this.templateDirectory);
+		} finally {
+			FileUtils.deleteQuietly(temporaryDirectory.toFile());
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.time.StopWatch;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A pool of isolated databases cloned from a template database with
+ * <code>CREATE DATABASE ... TEMPLATE</code>.
+ * <p>
+ * The template database is created and initialized (schema, seed data...) once.
+ * The pool is then refilled in the background: acquiring a database returns
+ * immediately when one is ready, and released databases are dropped
+ * asynchronously. A one-shot pool is not refilled: it clones its databases once
+ * and is exhausted when they have all been acquired.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+public class PostgresDatabasePool implements Closeable {
+
+	private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(30);
+
+	/**
+	 * Initializes the template database (schema, seed data...).
+	 */
+	@FunctionalInterface
+	public interface TemplateInitializer {
+
+		void initialize(DataSource template) throws SQLException;
+
+	}
+
+	private final PostgresEmbeddedServer server;
+	private final String templateName;
+	private final String poolId = UUID.randomUUID().toString().substring(0, 8);
+	private final int size;
+	private final boolean refilling;
+
+	private final BlockingQueue<String> readyDatabases = new LinkedBlockingQueue<>();
+	private final ExecutorService maintainers;
+	private final AtomicInteger databaseCount = new AtomicInteger();
+	private final AtomicInteger pendingClones = new AtomicInteger();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final AtomicReference<SQLException> failure = new AtomicReference<>();
+
+	/**
+	 * Create (if needed) the template database then start filling the pool.
+	 *
+	 * @param server
+	 *            the (started) server
+	 * @param templateName
+	 *            the name of the template database
+	 * @param size
+	 *            the number of databases kept ready
+	 * @param initializer
+	 *            initializes the template database when created
+	 * @param refilling
+	 *            whether acquired databases are replaced, else the pool clones
+	 *            exactly <code>size</code> databases
+	 * @throws SQLException
+	 *             if the template database cannot be created
+	 */
+	PostgresDatabasePool(final PostgresEmbeddedServer server, final String templateName, final int size,
+			final TemplateInitializer initializer, final boolean refilling) throws SQLException {
+		if (size <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive: " + size);
+		}
+		this.server = server;
+		this.templateName = templateName;
+		this.size = size;
+		this.refilling = refilling;
+		this.createTemplate(initializer);
+
+		// concurrent clones are allowed as nobody can connect to the template
+		final int maintainerCount = Math.max(1, Math.min(size, Runtime.getRuntime().availableProcessors()));
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.maintainers = Executors.newFixedThreadPool(maintainerCount, runnable -> {
+			final Thread thread = new Thread(runnable, "epg-pool-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < size; i++) {
+			this.scheduleRefill();
+		}
+	}
+
+	/**
+	 * Take a ready database out of the pool, waiting for one to be cloned if
+	 * needed. Unless the pool is one-shot, a new clone is immediately scheduled
+	 * to replace it.
+	 *
+	 * @return the database, to be closed when no longer needed
+	 * @throws SQLException
+	 *             if the pool is closed or exhausted, or if a clone failed since
+	 *             the last call
+	 */
+	public PooledDatabase acquire() throws SQLException {
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		String name = null;
+		while (name == null) {
+			this.checkState();
+			try {
+				name = this.readyDatabases.poll(100, TimeUnit.MILLISECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a pooled database", e);
+			}
+			// clones are added before being counted out
+			if (name == null && this.pendingClones.get() == 0 && this.readyDatabases.isEmpty()) {
+				if (!this.refilling) {
+					throw new SQLException(
+							"Pool of " + this.templateName + " is exhausted (" + this.size + " databases)");
+				}
+				// every clone failed: try again
+				this.scheduleRefill();
+			}
+		}
+		if (this.refilling) {
+			this.scheduleRefill();
+		}
+		log.debug("Acquired database {} in {}", name, watch);
+		return new PooledDatabase(name);
+	}
+
+	/**
+	 * Wait until the pool is full.
+	 *
+	 * @param timeout
+	 *            maximum time to wait
+	 * @throws SQLException
+	 *             if the pool is not full in time, is closed or failed to refill
+	 */
+	public void awaitFull(final Duration timeout) throws SQLException {
+		final long deadline = System.nanoTime() + timeout.toNanos();
+		while (this.readyDatabases.size() < this.size) {
+			this.checkState();
+			if (System.nanoTime() > deadline) {
+				throw new SQLException("Pool of " + this.templateName + " not full after " + timeout);
+			}
+			try {
+				Thread.sleep(10);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the pool to fill", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of databases ready to be acquired
+	 */
+	public int getReadyCount() {
+		return this.readyDatabases.size();
+	}
+
+	/**
+	 * Drop the databases still in the pool. Acquired databases are left as is.
+	 */
+	@Override
+	public void close() {
+		if (this.closed.getAndSet(true)) {
+			return;
+		}
+		this.maintainers.shutdown();
+		try {
+			if (!this.maintainers.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+				log.warn("Pool of {} still busy after {}", this.templateName, CLOSE_TIMEOUT);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		String name;
+		while ((name = this.readyDatabases.poll()) != null) {
+			this.drop(name);
+		}
+	}
+
+	private void createTemplate(final TemplateInitializer initializer) throws SQLException {
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		try (Connection connection = this.server.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement()) {
+			final Boolean template = this.isTemplate(connection);
+			if (Boolean.TRUE.equals(template)) {
+				log.info("Reusing template database {}", this.templateName);
+				return;
+			}
+			if (template != null) {
+				// left over by an interrupted initialization
+				this.terminateConnections(connection, this.templateName);
+				statement.execute("DROP DATABASE " + quote(this.templateName));
+			}
+			statement.execute("CREATE DATABASE " + quote(this.templateName));
+			initializer.initialize(this.server.getDatabase(PostgresEmbeddedServer.PG_SUPERUSER, this.templateName));
+			if (this.server.isUnloggedTables()) {
+				// the clones inherit it
+				this.server.setTablesUnlogged(this.templateName);
+			}
+			// clones fail while anybody is connected to the template
+			this.terminateConnections(connection, this.templateName);
+			statement.execute(
+					"ALTER DATABASE " + quote(this.templateName) + " WITH IS_TEMPLATE true ALLOW_CONNECTIONS false");
+		}
+		log.info("Template database {} created in {}", this.templateName, watch);
+	}
+
+	/**
+	 * @return whether the template database is marked as such, null if it does
+	 *         not exist
+	 */
+	private Boolean isTemplate(final Connection connection) throws SQLException {
+		try (PreparedStatement statement = connection
+				.prepareStatement("SELECT datistemplate FROM pg_database WHERE datname = ?")) {
+			statement.setString(1, this.templateName);
+			try (ResultSet result = statement.executeQuery()) {
+				return result.next() ? result.getBoolean(1) : null;
+			}
+		}
+	}
+
+	private void scheduleRefill() {
+		this.pendingClones.incrementAndGet();
+		try {
+			this.maintainers.execute(this::refill);
+		} catch (final RejectedExecutionException e) {
+			// closed meanwhile: nothing to refill
+			this.pendingClones.decrementAndGet();
+		}
+	}
+
+	private void refill() {
+		try {
+			if (!this.closed.get()) {
+				this.cloneTemplate();
+			}
+		} finally {
+			this.pendingClones.decrementAndGet();
+		}
+	}
+
+	private void cloneTemplate() {
+		final String name = this.templateName + "_" + this.poolId + "_" + this.databaseCount.incrementAndGet();
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		try (Connection connection = this.server.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute("CREATE DATABASE " + quote(name) + " TEMPLATE " + quote(this.templateName));
+			this.readyDatabases.add(name);
+			log.debug("Cloned {} into {} in {}", this.templateName, name, watch);
+		} catch (final SQLException e) {
+			log.error("Could not clone template database {}", this.templateName, e);
+			this.failure.compareAndSet(null, e);
+		}
+	}
+
+	private void drop(final String name) {
+		try (Connection connection = this.server.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement()) {
+			this.terminateConnections(connection, name);
+			statement.execute("DROP DATABASE IF EXISTS " + quote(name));
+			log.debug("Dropped pooled database {}", name);
+		} catch (final SQLException e) {
+			log.warn("Could not drop pooled database {}", name, e);
+		}
+	}
+
+	private void terminateConnections(final Connection connection, final String name) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = ? AND pid <> pg_backend_pid()")) {
+			statement.setString(1, name);
+			statement.executeQuery().close();
+		}
+	}
+
+	private void checkState() throws SQLException {
+		if (this.closed.get()) {
+			throw new SQLException("Pool of " + this.templateName + " is closed");
+		}
+		// reported once: later clones may succeed
+		final SQLException error = this.failure.getAndSet(null);
+		if (error != null) {
+			throw new SQLException("Pool of " + this.templateName + " failed to refill", error);
+		}
+	}
+
+	private static String quote(final String identifier) {
+		return '"' + identifier.replace("\"", "\"\"") + '"';
+	}
+
+	/**
+	 * A database taken out of the pool, dropped asynchronously when closed.
+	 */
+	public final class PooledDatabase implements Closeable {
+
+		private final String name;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private PooledDatabase(final String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public String getJdbcUrl(final String userName) {
+			return PostgresDatabasePool.this.server.getJdbcUrl(userName, this.name);
+		}
+
+		public DataSource getDataSource() {
+			return PostgresDatabasePool.this.server.getDatabase(PostgresEmbeddedServer.PG_SUPERUSER, this.name);
+		}
+
+		@Override
+		public void close() {
+			if (this.released.getAndSet(true)) {
+				return;
+			}
+			try {
+				PostgresDatabasePool.this.maintainers.execute(() -> PostgresDatabasePool.this.drop(this.name));
+			} catch (final RejectedExecutionException e) {
+				// the pool is closed
+				PostgresDatabasePool.this.drop(this.name);
+			}
+		}
+
+	}
+
+}
@@ -17,37 +17,58 @@ package fr.avereyl.tools.postgres;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.sql.Connection;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.SystemUtils;
 import org.apache.commons.lang3.time.StopWatch;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
 import org.postgresql.ds.PGSimpleDataSource;
 
 import fr.avereyl.tools.EmbeddedServer;
 import fr.avereyl.tools.traits.FileSystemAware;
 import fr.avereyl.tools.traits.OperatingSystemAware;
+import fr.avereyl.tools.utils.PortRegistry;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -58,12 +79,62 @@ import lombok.extern.slf4j.Slf4j;
 public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAware, FileSystemAware {
 
 	private static final String JDBC_FORMAT = "jdbc:postgresql://localhost:%s/%s?user=%s";
+	private static final String UNIX_SOCKET_FACTORY = "org.newsclub.net.unix.AFUNIXSocketFactory$FactoryArg";
+	private static final String UNIX_SOCKET_FORMAT = ".s.PGSQL.%d";
+	/**
+	 * Socket paths are limited to 108 bytes on Linux (104 on macOS).
+	 */
+	private static final int UNIX_SOCKET_MAX_PATH = 100;
 
 	private static final String PG_STOP_MODE = "fast";
 	private static final String PG_STOP_WAIT_S = "5";
-	private static final String PG_SUPERUSER = "postgres";
+	private static final Duration PG_STOP_WAIT = Duration.ofSeconds(30);
+
+	/**
+	 * Data directories being stopped asynchronously are renamed
+	 * &lt;name&gt;.trash-&lt;instance&gt; before being deleted.
+	 */
+	private static final String TRASH_INFIX = ".trash-";
+	private static final Set<File> REAPED_DIRECTORIES = ConcurrentHashMap.newKeySet();
+	static final String PG_SUPERUSER = "postgres";
+	private static final String PG_ENCODING = "UTF-8";
+
+	/**
+	 * Files of a data directory that must never be copied.
+	 */
+	private static final Set<String> TRANSIENT_FILES = new HashSet<>(
+			Arrays.asList("postmaster.pid", "postmaster.opts"));
 
 	private static final Duration DEFAULT_PG_STARTUP_WAIT = Duration.ofSeconds(10);
+	private static final String DEFAULT_MAX_CONNECTIONS = "300";
+	private static final Duration PROBE_TIMEOUT = Duration.ofMillis(500);
+	private static final int MAX_START_ATTEMPTS = 5;
+	private static final long STARTUP_BACKOFF_MIN_MS = 2;
+	private static final long STARTUP_BACKOFF_MAX_MS = 200;
+
+	/**
+	 * Index and value of the status line of postmaster.pid when accepting
+	 * connections.
+	 */
+	private static final int PM_STATUS_LINE = 7;
+	private static final int PM_PID_LINE = 0;
+	private static final String PM_STATUS_READY = "ready";
+	private static final String PM_STATUS_STANDBY = "standby";
+	/**
+	 * Make the permanent tables unlogged, the ones referencing others first (a
+	 * permanent table cannot reference an unlogged one): each pass converts the
+	 * tables no permanent table references any more (tables in a foreign key
+	 * cycle stay logged).
+	 */
+	private static final String SET_TABLES_UNLOGGED = "DO $$ DECLARE r record; converted boolean := true; BEGIN "
+			+ "WHILE converted LOOP converted := false; "
+			+ "FOR r IN SELECT c.oid::regclass AS name FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace "
+			+ "WHERE c.relkind = 'r' AND c.relpersistence = 'p' AND NOT c.relispartition "
+			+ "AND n.nspname NOT IN ('pg_catalog', 'information_schema') AND n.nspname NOT LIKE 'pg\\_%' "
+			+ "AND NOT EXISTS (SELECT 1 FROM pg_constraint f JOIN pg_class fc ON fc.oid = f.conrelid "
+			+ "WHERE f.contype = 'f' AND f.confrelid = c.oid AND f.conrelid <> c.oid AND fc.relpersistence = 'p') "
+			+ "LOOP EXECUTE format('ALTER TABLE %s SET UNLOGGED', r.name); converted := true; END LOOP; "
+			+ "END LOOP; END $$";
 
 	private final UUID instanceId = UUID.randomUUID();
 
@@ -86,32 +157,181 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 	private File dataDirectory;
 
 	private Duration pgStartupWait;
+	private Duration timeToReady;
+
+	/**
+	 * Whether to listen on a Unix domain socket (used for all local connections)
+	 * and whether to listen on TCP.
+	 */
+	private boolean unixSocket;
+	private boolean tcp = true;
+	private File socketDirectory;
+
+	/**
+	 * Whether to launch the postmaster directly (instead of through pg_ctl), its
+	 * process being kept to stop it and detect its death.
+	 */
+	private boolean directPostmaster;
+	private Process postmasterProcess;
+	private CompletableFuture<Integer> postmasterExit;
+	private volatile boolean stopping;
+
+	/**
+	 * Query run through JDBC once the server accepts connections, none if null.
+	 */
+	private String validationQuery;
 	private int port;
+	/**
+	 * Reservation of the port when not given, held until closing.
+	 */
+	private PortRegistry.Reservation portReservation;
 
 	private final AtomicBoolean started = new AtomicBoolean();
 	private final AtomicBoolean closed = new AtomicBoolean();
 
 	private final Map<String, String> postgresConfig = new HashMap<>();
 	private final Map<String, String> localeConfig = new HashMap<>();
+	private Map<String, String> connectionConfig = Collections.emptyMap();
 
 	private boolean cleanDataDirectoryAfterClosing;
 	private boolean cleanDataDirectoryBeforeStarting;
 
+	/**
+	 * Whether new data directories are copied from a cached initdb template.
+	 */
+	private boolean initdbTemplate = true;
+
+	/**
+	 * Whether to leave the postmaster running when closed, for the next builds to
+	 * attach to it, and after how long idle it stops by itself (never if null).
+	 */
+	private boolean keepAlive;
+	private Duration idleTimeout;
+	private PostgresKeepAlive keptAlive;
+	private boolean attached;
+
+	/**
+	 * Number of hot-standby replicas started along with this (primary) server.
+	 */
+	private int replicaCount;
+	private PostgresReplicaSet replicaSet;
+
+	/**
+	 * Settings applied unless explicitly configured, and whether the tables
+	 * created by the script runners, fixture loaders and database pools are
+	 * made unlogged.
+	 */
+	private PostgresProfile profile = PostgresProfile.DEFAULT;
+	private boolean unloggedTables;
+
+	/**
+	 * Number of clients (test forks) and of servers sharing the host to tune the
+	 * memory and connection settings for, not tuned if 0.
+	 */
+	private int autoTuneForks;
+	private int autoTuneServers = 1;
+
+	/**
+	 * Whether to place the data directory (and the binaries) on a memory-backed
+	 * filesystem when it has room enough, and the host I/O wait (in ms) when
+	 * started, to report the I/O wait while running.
+	 */
+	private boolean ramDisk;
+	private boolean ramDiskBinaries;
+	private boolean onRamDisk;
+	private Optional<Long> ioWaitAtStart = Optional.empty();
+
 	private PostgresEmbeddedServer(final PostgresEmbeddedServer.Builder builder) throws IOException {
 		// set fields from builder operations
 		builder.operations.forEach(op -> op.accept(this));
 
-		// check for missing mandatory parameters
-		this.port = this.port <= 0 ? this.detectPort() : this.port;
+		// apply the profile settings not explicitly configured
+		this.profile.getSettings().forEach((key, value) -> {
+			if (this.replicaCount > 0 && Arrays.asList(PostgresProfile.REPLICATION_SETTINGS).contains(key)) {
+				log.info("{} replicas started, ignoring {} of profile {}", this.instanceId, key, this.profile);
+				return;
+			}
+			this.postgresConfig.putIfAbsent(key, value);
+		});
+
+		// size the server for the host, unless explicitly configured
+		if (this.autoTuneForks > 0) {
+			new PostgresAutoTuner().tune(this.autoTuneForks, this.autoTuneServers * (1 + this.replicaCount))
+					.forEach((key, value) -> {
+						final String configured = this.postgresConfig.putIfAbsent(key, value);
+						if (configured != null) {
+							log.info("{} keeping configured {}={} (tuned {})", this.instanceId, key, configured,
+									value);
+						}
+					});
+		}
+		this.postgresConfig.putIfAbsent("max_connections", DEFAULT_MAX_CONNECTIONS);
+
 		this.pgStartupWait = this.pgStartupWait == null ? DEFAULT_PG_STARTUP_WAIT : this.pgStartupWait;
 
 		// set fields with default values (if needed)
 		this.postgresBinaryResolver = this.postgresBinaryResolver == null ? new BundledPostgresBinaryResolver()
 				: this.postgresBinaryResolver;
 
+		// move the data directory (and binaries) to memory (if needed)
+		if (this.ramDisk) {
+			this.placeOnRamDisk();
+		}
+
+		// look for a postmaster kept alive by a previous build
+		final int requestedPort = this.port;
+		final Optional<PostgresKeepAlive.Instance> keptInstance = this.findKeptAlive();
+
+		// check for missing mandatory parameters
+		if (keptInstance.isPresent()) {
+			this.port = keptInstance.get().getPort();
+		} else if (this.port <= 0) {
+			this.reservePort();
+		}
+
 		// prepare POSTGRES binaries (if needed)
-		this.postgresDirectory = this.postgresBinaryPreparer.prepare(this.postgresBinaryResolver,
-				this.overriddenWorkingDirectory);
+		this.postgresDirectory = keptInstance.isPresent() ? keptInstance.get().getPostgresDirectory()
+				: this.postgresBinaryPreparer.prepare(this.postgresBinaryResolver, this.overriddenWorkingDirectory);
+
+		if (this.directPostmaster && SystemUtils.IS_OS_WINDOWS) {
+			log.warn("{} postmaster cannot be launched directly on Windows, using pg_ctl", this.instanceId);
+			this.directPostmaster = false;
+		}
+
+		if (this.unixSocket && SystemUtils.IS_OS_WINDOWS) {
+			log.warn("{} Unix domain sockets are not supported on Windows, using TCP", this.instanceId);
+			this.unixSocket = false;
+			this.tcp = true;
+		}
+
+		// listen on a Unix domain socket and/or TCP
+		if (this.unixSocket) {
+			this.socketDirectory = this.createSocketDirectory();
+			this.postgresConfig.put("unix_socket_directories", this.socketDirectory.getPath());
+		}
+		if (!this.tcp) {
+			if (!this.unixSocket) {
+				throw new IllegalStateException("TCP can only be disabled when listening on a Unix domain socket");
+			}
+			this.postgresConfig.put("listen_addresses", "");
+		}
+
+		// attach to the postmaster kept alive if it still accepts connections
+		if (keptInstance.isPresent()) {
+			try {
+				this.probe();
+				this.attached = true;
+				return;
+			} catch (final SQLException e) {
+				log.warn("{} postmaster {} kept alive does not answer, restarting it", this.instanceId,
+						keptInstance.get().getPid(), e);
+				this.stopKeptAlive(keptInstance.get());
+				this.port = requestedPort;
+				if (this.port <= 0) {
+					this.reservePort();
+				}
+			}
+		}
 
 		// clean data directories (if needed)
 		if (this.isCleaningDataDirectoryBeforeStartRequired()) {
@@ -141,7 +361,6 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 		private Builder() {
 			this.config("timezone", "UTC");
 			this.config("synchronous_commit", "off");
-			this.config("max_connections", "300");
 		}
 
 		public PostgresEmbeddedServer build() throws IOException {
@@ -163,9 +382,82 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 			return this;
 		}
 
+		public Builder cleanDataDirectoryAfterClosing(final boolean clean) {
+			this.operations.add(server -> server.cleanDataDirectoryAfterClosing = clean);
+			return this;
+		}
+
+		public Builder directPostmaster(final boolean directPostmaster) {
+			this.operations.add(server -> server.directPostmaster = directPostmaster);
+			return this;
+		}
+
+		public Builder unixSocket(final boolean unixSocket) {
+			this.operations.add(server -> server.unixSocket = unixSocket);
+			return this;
+		}
+
+		public Builder tcp(final boolean tcp) {
+			this.operations.add(server -> server.tcp = tcp);
+			return this;
+		}
+
+		public Builder validationQuery(final String validationQuery) {
+			this.operations.add(server -> server.validationQuery = validationQuery);
+			return this;
+		}
+
+		public Builder initdbTemplate(final boolean initdbTemplate) {
+			this.operations.add(server -> server.initdbTemplate = initdbTemplate);
+			return this;
+		}
+
+		public Builder keepAlive(final boolean keepAlive) {
+			this.operations.add(server -> server.keepAlive = keepAlive);
+			return this;
+		}
+
+		public Builder idleTimeout(final Duration idleTimeout) {
+			this.operations.add(server -> server.idleTimeout = idleTimeout);
+			return this;
+		}
+
+		public Builder replicas(final int replicas) {
+			this.operations.add(server -> server.replicaCount = replicas);
+			return this;
+		}
+
+		public Builder profile(final PostgresProfile profile) {
+			this.operations.add(server -> server.profile = profile);
+			return this;
+		}
+
+		public Builder unloggedTables(final boolean unloggedTables) {
+			this.operations.add(server -> server.unloggedTables = unloggedTables);
+			return this;
+		}
+
+		public Builder autoTune(final int forks, final int servers) {
+			this.operations.add(server -> {
+				server.autoTuneForks = forks;
+				server.autoTuneServers = servers;
+			});
+			return this;
+		}
+
+		public Builder ramDisk(final boolean ramDisk) {
+			this.operations.add(server -> server.ramDisk = ramDisk);
+			return this;
+		}
+
+		public Builder ramDiskBinaries(final boolean ramDiskBinaries) {
+			this.operations.add(server -> server.ramDiskBinaries = ramDiskBinaries);
+			return this;
+		}
+
 		public Builder config(final String key, final String value) {
 			this.operations.add(server -> server.postgresConfig.put(key, value));
-			return null;
+			return this;
 		}
 
 	}
@@ -173,6 +465,16 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 	@Override
 	public EmbeddedServer start(final Map<String, String> connectionConfig) throws IOException {
 		Objects.requireNonNull(this.pgStartupWait, "Wait time cannot be null");
+		if (this.attached) {
+			if (this.started.getAndSet(true)) {
+				throw new IllegalStateException("Postmaster already started");
+			}
+			this.connectionConfig = connectionConfig;
+			this.keptAlive.startHeartbeat();
+			log.info("{} attached to postmaster kept alive on port {}", this.instanceId, this.port);
+			this.startReplicas();
+			return this;
+		}
 		// clean data (if needed) TODO integrate property access in builder
 		if (this.cleanDataDirectoryBeforeStarting && System.getProperty("pmp.no-cleanup") == null) {
 			try {
@@ -191,28 +493,275 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 			throw new IllegalStateException("Postmaster already started");
 		}
 
-		// ---------------------
+		this.connectionConfig = connectionConfig;
+		this.ioWaitAtStart = PostgresRamDisk.getIoWaitMillis();
+		this.awaitPreviousPostmaster();
+		this.reclaimTrash();
+		for (int attempt = 1;; attempt++) {
+			try {
+				this.startPostmaster(watch);
+				break;
+			} catch (final PostmasterExitedException e) {
+				// most likely the port got bound by somebody else meanwhile
+				if (this.portReservation == null || attempt >= MAX_START_ATTEMPTS) {
+					throw e;
+				}
+				log.warn("{} postmaster exited during startup on port {}, retrying on another port",
+						this.instanceId, this.port);
+				this.releasePort();
+				this.reservePort();
+			}
+		}
+
+		this.startReplicas();
+
+		// add shutdown hook (only if needed): never leave a cluster in memory behind
+		this.addShutDownHook(this.onRamDisk && !this.keepAlive);
+		return this;
+	}
+
+	private void startReplicas() throws IOException {
+		if (this.replicaCount > 0) {
+			this.replicaSet = new PostgresReplicaSet(this);
+			this.replicaSet.start(this.replicaCount, this.connectionConfig);
+		}
+	}
+
+	/**
+	 * @return a builder of a standby server with the same configuration on the
+	 *         given (copied) data directory, deleted when closed
+	 */
+	Builder replicaBuilder(final File replicaDirectory) {
+		final Builder builder = builder().datadir(replicaDirectory.getPath()).port(0).unixSocket(this.unixSocket)
+				.tcp(this.tcp).directPostmaster(this.directPostmaster).validationQuery(this.validationQuery)
+				.cleanDataDirectoryAfterClosing(true).initdbTemplate(false);
+		this.overriddenWorkingDirectory.ifPresent(directory -> builder.pgdir(directory.getPath()));
+		this.postgresConfig.forEach(builder::config);
+		builder.operations.add(server -> {
+			server.postgresBinaryResolver = this.postgresBinaryResolver;
+			server.pgStartupWait = this.pgStartupWait;
+		});
+		return builder;
+	}
+
+	/**
+	 * @return the started hot-standby replicas of this server
+	 */
+	public List<PostgresEmbeddedServer> getReplicas() {
+		return this.replicaSet == null ? Collections.emptyList() : this.replicaSet.getReplicas();
+	}
+
+	/**
+	 * @return the number of WAL bytes each streaming replica (by name) has not
+	 *         replayed yet, replicas not streaming being missing
+	 * @throws SQLException
+	 *             if the primary cannot be queried
+	 */
+	public Map<String, Long> getReplicationLag() throws SQLException {
+		return this.replicaSet == null ? Collections.emptyMap() : this.replicaSet.getReplicationLag();
+	}
+
+	/**
+	 * Wait for all the replicas to replay the WAL written so far on this server.
+	 *
+	 * @param timeout
+	 *            maximum time to wait
+	 * @return the time the replicas took to catch up
+	 * @throws SQLException
+	 *             if the replicas did not catch up in time
+	 */
+	public Duration awaitReplication(final Duration timeout) throws SQLException {
+		return this.replicaSet == null ? Duration.ZERO : this.replicaSet.awaitReplication(timeout);
+	}
+
+	private void startPostmaster(final StopWatch watch) throws IOException {
+		this.stopping = false;
+		// watching before launching so that no pid file event is missed
+		try (WatchService watcher = this.watchDataDirectory()) {
+			final Process postmaster = this.directPostmaster ? this.spawnPostmaster() : this.startWithPgCtl();
+
+			log.info("{} postmaster started as {} on port {}.  Waiting up to {} for server startup to finish.",
+					this.instanceId, postmaster.toString(), this.port, this.pgStartupWait);
+			this.waitForServerStartup(watcher, watch, this.connectionConfig);
+		}
+		if (this.keepAlive) {
+			this.keepPostmasterAlive();
+		}
+	}
+
+	/**
+	 * @return the postmaster kept alive on the data directory with the same
+	 *         configuration, empty if none (one with another configuration, or
+	 *         when not keeping alive, being stopped)
+	 */
+	private Optional<PostgresKeepAlive.Instance> findKeptAlive() {
+		if (this.keepAlive && this.directPostmaster) {
+			log.warn("{} postmaster kept alive is launched through pg_ctl", this.instanceId);
+			this.directPostmaster = false;
+		}
+		this.keptAlive = new PostgresKeepAlive(this.overriddenWorkingDirectory.orElseGet(this::getWorkingDirectory),
+				this.dataDirectory, this.getFingerprint());
+		final Optional<PostgresKeepAlive.Instance> instance = this.keptAlive.read()
+				.filter(kept -> this.readPidFile(this.dataDirectory, PM_PID_LINE)
+						.equals(Optional.of(String.valueOf(kept.getPid()))) && this.isProcessAlive(kept.getPid()));
+		if (instance.isPresent() && (!this.keepAlive || !instance.get().isMatching())) {
+			log.info("{} {}, stopping postmaster {} kept alive", this.instanceId,
+					this.keepAlive ? "configuration changed" : "not keeping alive", instance.get().getPid());
+			this.stopKeptAlive(instance.get());
+			return Optional.empty();
+		}
+		return instance;
+	}
+
+	private void stopKeptAlive(final PostgresKeepAlive.Instance instance) {
+		final String binaryPath = this.getBinaryPath(instance.getPostgresDirectory().getPath(), "pg_ctl");
+		this.system(log, binaryPath, "-D", this.dataDirectory.getPath(), "stop", "-m", PG_STOP_MODE, "-w");
+	}
+
+	/**
+	 * Record the postmaster for the next builds, watching its idleness (if
+	 * needed).
+	 */
+	private void keepPostmasterAlive() throws IOException {
+		final Optional<Long> pid = this.readPidFile(this.dataDirectory, PM_PID_LINE).map(Long::valueOf);
+		if (!pid.isPresent()) {
+			log.warn("{} no postmaster pid found, it will not be kept alive", this.instanceId);
+			return;
+		}
+		this.keptAlive.record(pid.get(), this.port, this.postgresDirectory);
+		this.keptAlive.startHeartbeat();
+		if (this.idleTimeout != null && !this.idleTimeout.isZero()) {
+			if (SystemUtils.IS_OS_WINDOWS) {
+				log.warn("{} idle timeout not supported on Windows, postmaster left running", this.instanceId);
+			} else {
+				this.keptAlive.startWatchdog(pid.get(), this.idleTimeout,
+						this.getBinaryPath(this.postgresDirectory.getPath(), "pg_ctl"), this.dataDirectory);
+			}
+		}
+	}
+
+	/**
+	 * @return the hash of the configuration a postmaster kept alive must have been
+	 *         started with to be attached to
+	 */
+	private String getFingerprint() {
+		return DigestUtils.md5Hex(String.join("|", this.postgresBinaryResolver.getClass().getName(),
+				this.dataDirectory.getAbsolutePath(), String.valueOf(this.port), String.valueOf(this.unixSocket),
+				String.valueOf(this.tcp), new TreeMap<>(this.postgresConfig).toString(),
+				new TreeMap<>(this.localeConfig).toString()));
+	}
+
+	private Process startWithPgCtl() {
 		final String binaryPath = this.getBinaryPath(this.postgresDirectory.getPath(), "pg_ctl");
 		final String options = this.createInitOptions(this.port, this.postgresConfig).stream()
 				.collect(Collectors.joining(" "));
-		final String[] commands = { binaryPath, "-D", this.dataDirectory.getPath(), "-o", options, "start" };
+		// do not let pg_ctl poll for startup, it is detected sooner below
+		final String[] commands = { binaryPath, "-D", this.dataDirectory.getPath(), "-o", options, "-W", "start" };
+		return this.system(log, commands);
+	}
 
-		final Process postmaster = this.system(log, commands);
+	/**
+	 * Launch the postmaster as a child process, a waiter thread completing
+	 * {@link #postmasterExit} as soon as it exits.
+	 */
+	private Process spawnPostmaster() throws IOException {
+		final List<String> commands = new ArrayList<>(Arrays.asList(
+				this.getBinaryPath(this.postgresDirectory.getPath(), "postgres"), "-D", this.dataDirectory.getPath()));
+		commands.addAll(this.createInitOptions(this.port, this.postgresConfig));
+		final Process process = this.spawn(log, commands.toArray(new String[0]));
+		final CompletableFuture<Integer> exit = new CompletableFuture<>();
+		final Thread waiter = new Thread(() -> {
+			try {
+				final int exitCode = process.waitFor();
+				if (!this.stopping) {
+					log.error("{} postmaster exited unexpectedly with code {}", this.instanceId, exitCode);
+				}
+				exit.complete(exitCode);
+			} catch (final InterruptedException e) {
+				exit.completeExceptionally(e);
+			}
+		}, "postgres-" + this.instanceId + "-waiter");
+		waiter.setDaemon(true);
+		waiter.start();
+		this.postmasterProcess = process;
+		this.postmasterExit = exit;
+		return process;
+	}
 
-		log.info("{} postmaster started as {} on port {}.  Waiting up to {} for server startup to finish.",
-				this.instanceId, postmaster.toString(), this.port, this.pgStartupWait);
+	private void stopPostmaster() {
+		this.stopping = true;
+		if (this.postmasterProcess != null) {
+			this.stopPostmasterProcess();
+			return;
+		}
+		final String binaryPath = this.getBinaryPath(this.postgresDirectory.getPath(), "pg_ctl");
+		final String[] commands = { binaryPath, "-D", this.dataDirectory.getPath(), "stop", "-m", PG_STOP_MODE, "-t",
+				PG_STOP_WAIT_S, "-w" };
+		this.system(log, commands);
+	}
 
-		// add shutdown hook (only if needed)
-		this.addShutDownHook(false);//
-		this.waitForServerStartup(watch, connectionConfig);
-		return this;
+	/**
+	 * Ask the postmaster launched by this instance for a fast shutdown (SIGINT)
+	 * and wait for its exit, escalating to an immediate shutdown (SIGQUIT) then
+	 * to killing it.
+	 */
+	private void stopPostmasterProcess() {
+		final Process process = this.postmasterProcess;
+		this.postmasterProcess = null;
+		try {
+			if (!this.signalPostmaster("INT", PG_STOP_WAIT)) {
+				log.warn("{} postmaster still running after {}, shutting it down immediately", this.instanceId,
+						PG_STOP_WAIT);
+				if (!this.signalPostmaster("QUIT", PG_STOP_WAIT)) {
+					process.destroyForcibly();
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.destroyForcibly();
+		}
+	}
+
+	/**
+	 * @return whether the postmaster exited in time
+	 */
+	private boolean signalPostmaster(final String signal, final Duration timeout) throws InterruptedException {
+		if (this.postmasterExit.isDone()) {
+			return true;
+		}
+		// Java cannot send SIGINT/SIGQUIT, the pid file holds the postmaster pid
+		final Optional<String> pid = this.readPidFile(this.dataDirectory, PM_PID_LINE);
+		if (pid.isPresent()) {
+			this.system(log, "kill", "-" + signal, pid.get());
+		}
+		try {
+			this.postmasterExit.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+			return true;
+		} catch (final TimeoutException | ExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return a future completed with the exit code of the postmaster launched
+	 *         directly by this instance
+	 * @throws IllegalStateException
+	 *             if the postmaster is not launched directly or not started
+	 */
+	public CompletableFuture<Integer> onPostmasterExit() {
+		if (this.postmasterExit == null) {
+			throw new IllegalStateException("Postmaster not launched directly");
+		}
+		return this.postmasterExit;
 	}
 
 	private void addShutDownHook(final boolean shutdownHookNeeded) {
 		if (shutdownHookNeeded) {
 			final Thread closeThread = new Thread(() -> {
 				try {
-					PostgresEmbeddedServer.this.close();
+					if (!this.closed.get()) {
+						PostgresEmbeddedServer.this.close();
+					}
 				} catch (final IOException ex) {
 					log.error("Unexpected IOException from Closeables.close", ex);
 				}
@@ -222,59 +771,223 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 		}
 	}
 
+	/**
+	 * Wait for the postmaster to accept connections. The data directory is watched
+	 * for the "ready" status written by the postmaster in its pid file (POSTGRES
+	 * 10+), readiness being checked on each change or, lacking changes, after an
+	 * exponential backoff.
+	 *
+	 * @param watch
+	 *            started when the postmaster was
+	 * @param connectConfig
+	 *            the connection properties
+	 * @throws IOException
+	 *             if the postmaster is not ready in time
+	 */
 	public void waitForServerStartup(final StopWatch watch, final Map<String, String> connectConfig)
 			throws IOException {
+		try (WatchService watcher = this.watchDataDirectory()) {
+			this.waitForServerStartup(watcher, watch, connectConfig);
+		}
+	}
+
+	private WatchService watchDataDirectory() throws IOException {
+		final WatchService watcher = this.dataDirectory.toPath().getFileSystem().newWatchService();
+		this.dataDirectory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		return watcher;
+	}
+
+	private void waitForServerStartup(final WatchService watcher, final StopWatch watch,
+			final Map<String, String> connectConfig) throws IOException {
 		Throwable lastCause = null;
 		final long start = System.nanoTime();
-		final long maxWaitNs = TimeUnit.NANOSECONDS.convert(this.pgStartupWait.toMillis(), TimeUnit.MILLISECONDS);
-		while (System.nanoTime() - start < maxWaitNs) {
-			try {
-				this.verifyReady(connectConfig);
-				log.info("{} postmaster startup finished in {}", this.instanceId, watch);
-				return;
-			} catch (final SQLException e) {
-				lastCause = e;
-				log.warn("While waiting for server startup", e);
+		final long maxWaitNs = this.pgStartupWait.toNanos();
+		final File pidFile = new File(this.dataDirectory, "postmaster.pid");
+		boolean pidFileSeen = false;
+		long backoffMs = STARTUP_BACKOFF_MIN_MS;
+		int attempts = 0;
+		try {
+			while (System.nanoTime() - start < maxWaitNs) {
+				if (this.directPostmaster && this.postmasterExit.isDone()) {
+					throw new PostmasterExitedException("Postmaster exited during startup on port " + this.port,
+							lastCause);
+				}
+				// the pid file is created early and only removed when the postmaster exits
+				// (or replaced when stale, hence the existence check)
+				if (pidFile.exists()) {
+					pidFileSeen = true;
+				} else if (pidFileSeen) {
+					throw new PostmasterExitedException(
+							"Postmaster exited during startup on port " + this.port, lastCause);
+				}
+				final Optional<String> status = this.getPostmasterStatus(pidFile);
+				// no status line before POSTGRES 10: probe blindly
+				if (!status.isPresent() || PM_STATUS_READY.equals(status.get())
+						|| PM_STATUS_STANDBY.equals(status.get())) {
+					attempts++;
+					try {
+						this.verifyReady(connectConfig);
+						this.timeToReady = Duration.ofNanos(watch.getNanoTime());
+						log.info("{} postmaster startup finished in {} ms ({} readiness checks)", this.instanceId,
+								this.timeToReady.toMillis(), attempts);
+						return;
+					} catch (final SQLException e) {
+						lastCause = e;
+						log.debug("{} postmaster not ready yet: {}", this.instanceId, e.getMessage());
+					}
+				}
+				final WatchKey key = watcher.poll(backoffMs, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					pidFileSeen |= key.pollEvents().stream()
+							.anyMatch(event -> pidFile.getName().equals(String.valueOf(event.context())));
+					key.reset();
+				} else {
+					backoffMs = Math.min(backoffMs * 2, STARTUP_BACKOFF_MAX_MS);
+				}
 			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for server startup");
+		}
+		throw new IOException("Gave up waiting for server to start after " + this.pgStartupWait.toMillis() + "ms",
+				lastCause);
+	}
 
+	private void reservePort() throws IOException {
+		this.portReservation = new PortRegistry(new File(this.getWorkingDirectory(), "ports")).reserve();
+		this.port = this.portReservation.getPort();
+	}
+
+	private void releasePort() {
+		if (this.portReservation != null) {
 			try {
-				Thread.sleep(100);
-			} catch (final InterruptedException e) {
-				Thread.currentThread().interrupt();
-				return;
+				this.portReservation.close();
+			} catch (final IOException e) {
+				log.warn("{} could not release port {}", this.instanceId, this.port, e);
 			}
+			this.portReservation = null;
 		}
-		throw new IOException("Gave up waiting for server to start after " + this.pgStartupWait.toMillis() + "ms",
-				lastCause);
 	}
 
-	public void verifyReady(final Map<String, String> connectConfig) throws SQLException {
-		final InetAddress localhost = InetAddress.getLoopbackAddress();
-		try (Socket sock = new Socket()) {
-			sock.setSoTimeout((int) Duration.ofMillis(500).toMillis());
-			log.info("Trying to connect to {} on port {}", localhost.getHostName(), this.port);
-			sock.connect(new InetSocketAddress(localhost, this.port), (int) Duration.ofMillis(500).toMillis());
+	/**
+	 * @return the status line of the given pid file, empty if missing
+	 */
+	private Optional<String> getPostmasterStatus(final File pidFile) {
+		try {
+			final List<String> lines = Files.readAllLines(pidFile.toPath(), StandardCharsets.US_ASCII);
+			return lines.size() > PM_STATUS_LINE ? Optional.of(lines.get(PM_STATUS_LINE).trim())
+					: Optional.empty();
 		} catch (final IOException e) {
-			log.error("Socket connection failed !");
-			throw new SQLException("connect failed", e);
-		}
-		try (Connection c = this.getPostgresDatabase(connectConfig).getConnection();
-				Statement s = c.createStatement();
-				ResultSet rs = s.executeQuery("SELECT 1")) {
-			if (!rs.next()) {
-				throw new IllegalStateException("expecting single row");
-			}
-			if (1 != rs.getInt(1)) {
-				throw new IllegalStateException("expecting 1");
-			}
-			if (rs.next()) {
-				throw new IllegalStateException("expecting single row");
+			// not written yet (or being rewritten)
+			return Optional.of("");
+		}
+	}
+
+	/**
+	 * @return the given line of the pid file, empty if missing or unreadable
+	 */
+	private Optional<String> readPidFile(final File directory, final int line) {
+		try {
+			final List<String> lines = Files.readAllLines(new File(directory, "postmaster.pid").toPath(),
+					StandardCharsets.US_ASCII);
+			return lines.size() > line ? Optional.of(lines.get(line).trim()) : Optional.empty();
+		} catch (final IOException e) {
+			return Optional.empty();
+		}
+	}
+
+	public int getPort() {
+		return this.port;
+	}
+
+	File getDataDirectory() {
+		return this.dataDirectory;
+	}
+
+	/**
+	 * @return the time the last (re)start took to accept connections, null if
+	 *         never started
+	 */
+	public Duration getTimeToReady() {
+		return this.timeToReady;
+	}
+
+	/**
+	 * Check the server accepts connections using the wire-protocol probe, then
+	 * run the validation query (if any) through JDBC.
+	 *
+	 * @param connectConfig
+	 *            the connection properties used by the validation query
+	 * @throws SQLException
+	 *             if the server is not ready or the validation query fails
+	 */
+	public void verifyReady(final Map<String, String> connectConfig) throws SQLException {
+		this.probe();
+		if (this.validationQuery != null) {
+			try (Connection c = this.getPostgresDatabase(connectConfig).getConnection();
+					Statement s = c.createStatement()) {
+				s.execute(this.validationQuery);
 			}
 		}
 	}
 
+	/**
+	 * @throws SQLException
+	 *             if the wire-protocol probe does not find a server accepting
+	 *             connections
+	 */
+	private void probe() throws SQLException {
+		final SocketAddress address;
+		try {
+			address = this.socketDirectory != null ? AFUNIXSocketAddress.of(this.getSocketFile())
+					: new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port);
+		} catch (final SocketException e) {
+			throw new SQLException("Invalid socket " + this.getSocketFile(), e);
+		}
+		final PostgresReadinessProbe.Status status = PostgresReadinessProbe.probe(address, PG_SUPERUSER,
+				PROBE_TIMEOUT);
+		if (status != PostgresReadinessProbe.Status.READY) {
+			throw new SQLException("Server on " + address + " is " + status);
+		}
+	}
+
 	public String getJdbcUrl(final String userName, final String dbName) {
-		return String.format(JDBC_FORMAT, this.port, dbName, userName);
+		final String url = String.format(JDBC_FORMAT, this.port, dbName, userName);
+		if (this.socketDirectory == null) {
+			return url;
+		}
+		try {
+			return url + "&socketFactory=" + URLEncoder.encode(UNIX_SOCKET_FACTORY, "UTF-8") + "&socketFactoryArg="
+					+ URLEncoder.encode(this.getSocketFile().getPath(), "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the Unix domain socket of the server, null if not listening on one
+	 */
+	public File getSocketFile() {
+		return this.socketDirectory == null ? null
+				: new File(this.socketDirectory, String.format(UNIX_SOCKET_FORMAT, this.port));
+	}
+
+	/**
+	 * The socket directory is derived from the data directory so that any server
+	 * instance on that directory finds it, falling back to the temporary directory
+	 * when the socket path would be too long.
+	 */
+	private File createSocketDirectory() {
+		final String name = DigestUtils.md5Hex(this.dataDirectory.getAbsolutePath()).substring(0, 8);
+		File directory = new File(this.postgresDirectory.getParentFile(), "sockets/" + name).getAbsoluteFile();
+		if (new File(directory, String.format(UNIX_SOCKET_FORMAT, 65535)).getPath()
+				.length() > UNIX_SOCKET_MAX_PATH) {
+			directory = new File(System.getProperty("java.io.tmpdir"), "epg-sockets/" + name).getAbsoluteFile();
+			log.debug("{} working directory path too long for sockets, using {}", this.instanceId, directory);
+		}
+		this.mkdirs(directory);
+		return directory;
 	}
 
 	public DataSource getPostgresDatabase() {
@@ -293,6 +1006,10 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 		final PGSimpleDataSource ds = new PGSimpleDataSource();
 		ds.setServerName("localhost");
 		ds.setPortNumber(this.port);
+		if (this.socketDirectory != null) {
+			ds.setSocketFactory(UNIX_SOCKET_FACTORY);
+			ds.setSocketFactoryArg(this.getSocketFile().getPath());
+		}
 		ds.setDatabaseName(dbName);
 		ds.setUser(userName);
 
@@ -309,21 +1026,211 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 		return ds;
 	}
 
+	/**
+	 * Create a pool of databases cloned from the given template database. The
+	 * template database is created and initialized if it does not exist yet.
+	 *
+	 * @param templateName
+	 *            the name of the template database
+	 * @param size
+	 *            the number of databases kept ready
+	 * @param initializer
+	 *            initializes the template database (schema, seed data...)
+	 * @return the pool, to be closed when no longer needed
+	 * @throws SQLException
+	 *             if the template database cannot be created
+	 */
+	public PostgresDatabasePool createDatabasePool(final String templateName, final int size,
+			final PostgresDatabasePool.TemplateInitializer initializer) throws SQLException {
+		return this.createDatabasePool(templateName, size, initializer, true);
+	}
+
+	/**
+	 * Create a pool of databases cloned from the given template database. The
+	 * template database is created and initialized if it does not exist yet.
+	 *
+	 * @param templateName
+	 *            the name of the template database
+	 * @param size
+	 *            the number of databases kept ready
+	 * @param initializer
+	 *            initializes the template database (schema, seed data...)
+	 * @param refilling
+	 *            whether acquired databases are replaced, else exactly
+	 *            <code>size</code> databases are cloned (one-shot pool)
+	 * @return the pool, to be closed when no longer needed
+	 * @throws SQLException
+	 *             if the template database cannot be created
+	 */
+	public PostgresDatabasePool createDatabasePool(final String templateName, final int size,
+			final PostgresDatabasePool.TemplateInitializer initializer, final boolean refilling)
+			throws SQLException {
+		this.checkStarted();
+		return new PostgresDatabasePool(this, templateName, size, initializer, refilling);
+	}
+
+	/**
+	 * Create a runner of SQL scripts on the given database.
+	 *
+	 * @param databaseName
+	 *            the database to run the scripts on
+	 * @param threads
+	 *            the maximum number of scripts run at once (and of connections)
+	 * @param batchSize
+	 *            the maximum number of statements sent at once
+	 * @return the runner
+	 */
+	public PostgresScriptRunner createScriptRunner(final String databaseName, final int threads,
+			final int batchSize) {
+		this.checkStarted();
+		return new PostgresScriptRunner(this.getDatabase(PG_SUPERUSER, databaseName, this.connectionConfig),
+				threads, batchSize, this.unloggedTables);
+	}
+
+	/**
+	 * Create a loader of fixture files (COPY) into the given database.
+	 *
+	 * @param databaseName
+	 *            the database to load the fixtures into
+	 * @param threads
+	 *            the maximum number of tables loaded at once (and of connections)
+	 * @param bufferSize
+	 *            the size (in bytes) of the buffers streaming the files
+	 * @return the loader
+	 */
+	public PostgresFixtureLoader createFixtureLoader(final String databaseName, final int threads,
+			final int bufferSize) {
+		this.checkStarted();
+		return new PostgresFixtureLoader(this.getDatabase(PG_SUPERUSER, databaseName, this.connectionConfig),
+				threads, bufferSize, this.unloggedTables);
+	}
+
+	/**
+	 * Make the tables of the given database unlogged (faster writes, but
+	 * emptied by a crash and not replicated), e.g. once a schema created
+	 * outside of the script runners is complete. Tables are converted in one
+	 * pass: a permanent table referencing an unlogged one cannot be created.
+	 *
+	 * @param databaseName
+	 *            the database whose tables to convert
+	 * @throws SQLException
+	 *             if a table cannot be converted
+	 */
+	public void setTablesUnlogged(final String databaseName) throws SQLException {
+		this.checkStarted();
+		setTablesUnlogged(this.getDatabase(PG_SUPERUSER, databaseName, this.connectionConfig));
+	}
+
+	static void setTablesUnlogged(final DataSource database) throws SQLException {
+		try (Connection connection = database.getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute(SET_TABLES_UNLOGGED);
+		}
+	}
+
+	boolean isUnloggedTables() {
+		return this.unloggedTables;
+	}
+
+	/**
+	 * Freeze the cluster state into the given directory: the server is
+	 * checkpointed and cleanly stopped, the data directory is copied then the
+	 * server is restarted. Files unchanged since a previous snapshot into the
+	 * same directory are not copied again.
+	 *
+	 * @param snapshotDirectory
+	 *            the directory where storing the snapshot
+	 * @throws IOException
+	 *             if the data directory cannot be copied or the server restarted
+	 */
+	public void snapshot(final File snapshotDirectory) throws IOException {
+		this.checkStarted();
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		this.checkpoint();
+		this.stopPostmaster();
+		final long copied = this.syncDirectory(this.dataDirectory, snapshotDirectory,
+				PostgresEmbeddedServer::isCopiable);
+		log.info("{} snapshot {} taken in {} ({} bytes copied)", this.instanceId, snapshotDirectory, watch, copied);
+		this.startPostmaster(watch);
+	}
+
+	/**
+	 * Restore the cluster state frozen by {@link #snapshot(File)}: the server is
+	 * stopped, only the files changed since the snapshot are rewritten then the
+	 * server is restarted.
+	 *
+	 * @param snapshotDirectory
+	 *            the directory where the snapshot is stored
+	 * @throws IOException
+	 *             if there is no snapshot, it cannot be copied or the server
+	 *             restarted
+	 */
+	public void restore(final File snapshotDirectory) throws IOException {
+		this.checkStarted();
+		if (!new File(snapshotDirectory, "PG_VERSION").exists()) {
+			throw new IOException("No snapshot found in " + snapshotDirectory);
+		}
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		this.stopPostmaster();
+		final long copied = this.syncDirectory(snapshotDirectory, this.dataDirectory,
+				PostgresEmbeddedServer::isCopiable);
+		log.info("{} snapshot {} restored in {} ({} bytes copied)", this.instanceId, snapshotDirectory, watch,
+				copied);
+		this.startPostmaster(watch);
+	}
+
+	/**
+	 * Flush dirty buffers so the following shutdown is fast.
+	 */
+	private void checkpoint() {
+		try (Connection c = this.getPostgresDatabase(this.connectionConfig).getConnection();
+				Statement s = c.createStatement()) {
+			s.execute("CHECKPOINT");
+		} catch (final SQLException e) {
+			log.warn("{} checkpoint failed", this.instanceId, e);
+		}
+	}
+
+	private void checkStarted() {
+		if (!this.started.get() || this.closed.get()) {
+			throw new IllegalStateException("Postmaster not started");
+		}
+	}
+
+	static boolean isCopiable(final Path path) {
+		return !TRANSIENT_FILES.contains(String.valueOf(path.getFileName()));
+	}
+
 	private void cleanDataDirectory(final File parentDirectory) {
 		// TODO Auto-generated method stub
 
 	}
 
 	private void initDatabase() {
+		if (this.initdbTemplate) {
+			try {
+				new PostgresClusterTemplate(this.postgresDirectory, PG_ENCODING, PG_SUPERUSER, this.localeConfig)
+						.copyTo(this.dataDirectory, this::initDatabase);
+				return;
+			} catch (final IOException | RuntimeException e) {
+				log.warn("{} could not use initdb template, running initdb", this.instanceId, e);
+				FileUtils.deleteQuietly(this.dataDirectory);
+			}
+		}
+		this.initDatabase(this.dataDirectory);
+	}
+
+	private void initDatabase(final File directory) {
 		final StopWatch watch = new StopWatch();
 		watch.start();
 
-		final String binaryPath = this.getBinaryPath(this.postgresDirectory.getPath(), "initdb");
-		final String localOptions = this.createLocaleOptions(this.localeConfig).stream()
-				.collect(Collectors.joining(" "));
-		final String[] commands = { binaryPath, "-A", "trust", "-U", PG_SUPERUSER, "-D", this.dataDirectory.getPath(),
-				"-E", "UTF-8", localOptions };
-		this.system(log, commands);
+		final List<String> commands = new ArrayList<>(Arrays.asList(
+				this.getBinaryPath(this.postgresDirectory.getPath(), "initdb"), "-A", "trust", "-U", PG_SUPERUSER,
+				"-D", directory.getPath(), "-E", PG_ENCODING));
+		commands.addAll(this.createLocaleOptions(this.localeConfig));
+		this.system(log, commands.toArray(new String[0]));
 
 		log.info("{} initdb completed in {}", this.instanceId, watch);
 	}
@@ -351,24 +1258,30 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 			log.warn("Server already stopped");
 			return;
 		}
+		this.logIoWait();
+		this.closeReplicas();
+		if (this.keepAlive) {
+			this.leavePostmasterRunning();
+			return;
+		}
 		final StopWatch watch = new StopWatch();
 		watch.start();
 		try {
 
-			final String binaryPath = this.getBinaryPath(this.postgresDirectory.getPath(), "pg_ctl");
-			final String[] commands = { binaryPath, "-D", this.dataDirectory.getPath(), "stop", "-m", PG_STOP_MODE,
-					"-t", PG_STOP_WAIT_S, "-w" };
-			this.system(log, commands);
+			this.stopPostmaster();
 
 			log.info("{} shut down postmaster in {}", this.instanceId, watch);
 		} catch (final Exception e) {
 			log.error("Could not stop postmaster " + this.instanceId, e);
 		}
 
+		this.releasePort();
+
 		// clean data (if needed) TODO integrate property access in builder
-		if (this.cleanDataDirectoryAfterClosing && System.getProperty("pmp.no-cleanup") == null) {
+		if (this.isCleaningDataDirectoryAfterCloseEnabled()) {
 			try {
 				FileUtils.deleteDirectory(this.dataDirectory);
+				this.deleteRamDiskDirectory();
 			} catch (final IOException e) {
 				log.error("Could not clean up directory {}", this.dataDirectory.getAbsolutePath());
 			}
@@ -377,4 +1290,236 @@ public class PostgresEmbeddedServer implements EmbeddedServer, OperatingSystemAw
 		}
 	}
 
+	/**
+	 * Ask the postmaster for a fast shutdown and return immediately. A reaper
+	 * thread then waits for the postmaster to exit, releases the port and deletes
+	 * the data directory (if required). The data directory is first renamed, so a
+	 * new server can be created at once on the same path.
+	 *
+	 * @return a future completed once the postmaster exited and the data directory
+	 *         was deleted
+	 */
+	public CompletableFuture<Void> closeAsync() {
+		if (this.closed.getAndSet(true)) {
+			log.warn("Server already stopped");
+			return CompletableFuture.completedFuture(null);
+		}
+		this.logIoWait();
+		this.closeReplicas();
+		if (this.keepAlive) {
+			this.leavePostmasterRunning();
+			return CompletableFuture.completedFuture(null);
+		}
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		final Optional<Long> pid = this.readPidFile(this.dataDirectory, PM_PID_LINE).map(Long::valueOf);
+		this.stopping = true;
+		try {
+			if (this.directPostmaster) {
+				pid.ifPresent(postmasterPid -> this.system(log, "kill", "-INT", postmasterPid.toString()));
+			} else {
+				final String binaryPath = this.getBinaryPath(this.postgresDirectory.getPath(), "pg_ctl");
+				this.system(log, binaryPath, "-D", this.dataDirectory.getPath(), "stop", "-m", PG_STOP_MODE, "-W");
+			}
+		} catch (final RuntimeException e) {
+			log.error("Could not stop postmaster " + this.instanceId, e);
+		}
+
+		File remains = this.dataDirectory;
+		final boolean deleting = this.isCleaningDataDirectoryAfterCloseEnabled();
+		if (deleting) {
+			final File trash = new File(this.dataDirectory.getParentFile(),
+					this.dataDirectory.getName() + TRASH_INFIX + this.instanceId);
+			if (this.dataDirectory.renameTo(trash)) {
+				remains = trash;
+			} else {
+				log.warn("{} could not rename {}, deleting it in place", this.instanceId, this.dataDirectory);
+			}
+		}
+
+		final File directory = remains;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		REAPED_DIRECTORIES.add(directory);
+		// not a daemon: the JVM waits for the deletion unless exited explicitly
+		final Thread reaper = new Thread(() -> {
+			try {
+				if (!pid.isPresent() || this.awaitPostmasterExit(directory, pid.get(), PG_STOP_WAIT)) {
+					this.releasePort();
+					log.info("{} shut down postmaster in {}", this.instanceId, watch);
+					if (deleting) {
+						this.deleteDirectory(directory);
+						this.deleteRamDiskDirectory();
+						log.info("{} cleaned up data directory in {}", this.instanceId, watch);
+					}
+				} else {
+					log.warn("{} postmaster still running after {}", this.instanceId, PG_STOP_WAIT);
+				}
+				done.complete(null);
+			} catch (final IOException | RuntimeException e) {
+				log.error("Could not clean up directory {}", directory, e);
+				done.completeExceptionally(e);
+			} finally {
+				REAPED_DIRECTORIES.remove(directory);
+			}
+		}, "postgres-" + this.instanceId + "-reaper");
+		reaper.start();
+		return done;
+	}
+
+	/**
+	 * Delete the directory holding the data directory in memory, once empty
+	 * (replicas and renamed data directories included).
+	 */
+	private void deleteRamDiskDirectory() {
+		if (this.onRamDisk && !this.dataDirectory.getParentFile().delete()) {
+			log.debug("{} kept {}, not empty", this.instanceId, this.dataDirectory.getParentFile());
+		}
+	}
+
+	private void logIoWait() {
+		this.ioWaitAtStart.ifPresent(start -> PostgresRamDisk.getIoWaitMillis()
+				.ifPresent(end -> log.info("{} host I/O wait while running: {} ms (data directory {})",
+						this.instanceId, end - start, this.onRamDisk ? "in memory" : "on disk")));
+	}
+
+	private void closeReplicas() {
+		if (this.replicaSet != null) {
+			this.replicaSet.close();
+			this.replicaSet = null;
+		}
+	}
+
+	private void leavePostmasterRunning() {
+		this.keptAlive.release();
+		this.releasePort();
+		log.info("{} postmaster left running on port {} for the next builds", this.instanceId, this.port);
+	}
+
+	/**
+	 * Move the data directory (and the binaries, if asked) to a memory-backed
+	 * filesystem, keeping them on disk when none has room enough. A data
+	 * directory in memory is always deleted when closed (unless kept alive).
+	 */
+	private void placeOnRamDisk() {
+		final Optional<PostgresRamDisk> memory = PostgresRamDisk.find();
+		if (!memory.isPresent()) {
+			log.warn("{} no memory-backed filesystem found, keeping {} on disk", this.instanceId, this.dataDirectory);
+			return;
+		}
+		if (this.ramDiskBinaries) {
+			memory.get().placeWorkingDirectory()
+					.ifPresent(directory -> this.overriddenWorkingDirectory = Optional.of(directory));
+		}
+		final Optional<File> directory = memory.get().placeDataDirectory(this.dataDirectory);
+		if (!directory.isPresent()) {
+			log.warn("{} keeping {} on disk", this.instanceId, this.dataDirectory);
+			return;
+		}
+		log.info("{} data directory {} placed in memory at {}", this.instanceId, this.dataDirectory,
+				directory.get());
+		this.dataDirectory = directory.get();
+		this.onRamDisk = true;
+		if (!this.keepAlive) {
+			this.cleanDataDirectoryAfterClosing = true;
+		}
+	}
+
+	/**
+	 * Wait for the postmasters still running on the data directory or on a
+	 * renamed one (being stopped asynchronously) to exit: they may still hold the
+	 * port or the socket lock.
+	 */
+	private void awaitPreviousPostmaster() throws IOException {
+		final List<File> directories = new ArrayList<>();
+		directories.add(this.dataDirectory);
+		directories.addAll(this.listTrash());
+		for (final File directory : directories) {
+			final Optional<Long> pid = this.readPidFile(directory, PM_PID_LINE).map(Long::valueOf);
+			if (pid.isPresent() && this.isProcessAlive(pid.get())) {
+				log.info("{} waiting for previous postmaster {} on {} to exit", this.instanceId, pid.get(),
+						directory);
+				if (!this.awaitPostmasterExit(directory, pid.get(), this.pgStartupWait)) {
+					log.warn("{} postmaster {} still running after {}", this.instanceId, pid.get(),
+							this.pgStartupWait);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the data directories renamed by asynchronous stops and not deleted
+	 *         yet
+	 */
+	private List<File> listTrash() {
+		final String prefix = this.dataDirectory.getName() + TRASH_INFIX;
+		final File[] trashes = this.dataDirectory.getAbsoluteFile().getParentFile()
+				.listFiles((directory, name) -> name.startsWith(prefix));
+		return trashes == null ? Collections.emptyList() : Arrays.asList(trashes);
+	}
+
+	/**
+	 * Delete in the background the data directories renamed by asynchronous stops
+	 * whose reaper did not finish (JVM exited meanwhile).
+	 */
+	private void reclaimTrash() {
+		for (final File trash : this.listTrash()) {
+			final Optional<Long> pid = this.readPidFile(trash, PM_PID_LINE).map(Long::valueOf);
+			if (REAPED_DIRECTORIES.contains(trash) || pid.isPresent() && this.isProcessAlive(pid.get())) {
+				continue;
+			}
+			REAPED_DIRECTORIES.add(trash);
+			final Thread reaper = new Thread(() -> {
+				try {
+					this.deleteDirectory(trash);
+					log.info("{} reclaimed {}", this.instanceId, trash);
+				} catch (final IOException e) {
+					log.warn("{} could not reclaim {}", this.instanceId, trash, e);
+				} finally {
+					REAPED_DIRECTORIES.remove(trash);
+				}
+			}, "postgres-" + this.instanceId + "-reclaimer");
+			reaper.start();
+		}
+	}
+
+	/**
+	 * @return whether the postmaster exited (removing its pid file) in time
+	 */
+	private boolean awaitPostmasterExit(final File directory, final long pid, final Duration timeout)
+			throws InterruptedIOException {
+		final File pidFile = new File(directory, "postmaster.pid");
+		final long deadline = System.nanoTime() + timeout.toNanos();
+		long backoffMs = STARTUP_BACKOFF_MIN_MS;
+		while (pidFile.exists() && this.isProcessAlive(pid)) {
+			if (System.nanoTime() > deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(backoffMs);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for postmaster " + pid);
+			}
+			backoffMs = Math.min(backoffMs * 2, STARTUP_BACKOFF_MAX_MS);
+		}
+		return true;
+	}
+
+	private boolean isCleaningDataDirectoryAfterCloseEnabled() {
+		return this.cleanDataDirectoryAfterClosing && System.getProperty("pmp.no-cleanup") == null;
+	}
+
+	/**
+	 * Thrown when the postmaster exits before accepting connections.
+	 */
+	private static final class PostmasterExitedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private PostmasterExitedException(final String message, final Throwable cause) {
+			super(message, cause);
+		}
+
+	}
+
 }
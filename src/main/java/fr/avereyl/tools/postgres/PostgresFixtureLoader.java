@@ -0,0 +1,552 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.time.StopWatch;
+import org.postgresql.PGConnection;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Loads fixture files into tables with <code>COPY ... FROM STDIN</code>, files
+ * being streamed (and decompressed) through fixed-size buffers. Tables load in
+ * parallel, each on its own connection, after the tables they reference
+ * through foreign keys.
+ * <p>
+ * A file loads into the table named after it, extensions removed (e.g.
+ * <code>sales.orders.csv.gz</code> into <code>sales.orders</code>, the part
+ * before the first dot naming the schema, both case sensitive): .csv files in
+ * CSV format, .tsv and .txt files in the text format of POSTGRES (tab
+ * separated, \N for NULL). Gzip and Zstandard compressed files are detected
+ * from their first bytes.
+ * <p>
+ * Indexes and constraints of the tables may be dropped during the load and
+ * recreated afterwards, building an index once being much faster than
+ * updating it for each row.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+public class PostgresFixtureLoader {
+
+	private static final double MB = 1024 * 1024;
+	private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+	private static final byte[] ZSTD_MAGIC = { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd };
+	private static final String[] COMPRESSION_EXTENSIONS = { ".gz", ".zst" };
+	private static final String[] DATA_EXTENSIONS = { ".csv", ".tsv", ".txt" };
+
+	private static final String CONSTRAINTS_QUERY = "SELECT conrelid::regclass::text, conname, contype, "
+			+ "pg_get_constraintdef(oid) FROM pg_constraint "
+			+ "WHERE contype IN ('p', 'u', 'x', 'f') "
+			+ "AND (conrelid = ANY (?::regclass[]) OR confrelid = ANY (?::regclass[])) "
+			+ "ORDER BY contype = 'f' DESC";
+	private static final String REFERENCES_QUERY = "WITH t AS (SELECT name, name::regclass AS oid "
+			+ "FROM unnest(?::text[]) name) SELECT r.name, d.name FROM pg_constraint c "
+			+ "JOIN t r ON r.oid = c.conrelid JOIN t d ON d.oid = c.confrelid "
+			+ "WHERE c.contype = 'f' AND c.conrelid <> c.confrelid";
+	private static final String INDEXES_QUERY = "SELECT i.indexrelid::regclass::text, pg_get_indexdef(i.indexrelid) "
+			+ "FROM pg_index i WHERE i.indrelid = ANY (?::regclass[]) AND NOT EXISTS (SELECT 1 FROM pg_constraint c "
+			+ "WHERE c.conindid = i.indexrelid AND c.contype IN ('p', 'u', 'x'))";
+
+	private final DataSource dataSource;
+	private final int threads;
+	private final int bufferSize;
+	private final boolean unloggedTables;
+
+	/**
+	 * @param dataSource
+	 *            the database to load the fixtures into
+	 * @param threads
+	 *            the maximum number of tables loaded at once (and of
+	 *            connections)
+	 * @param bufferSize
+	 *            the size (in bytes) of the buffers streaming the files
+	 * @param unloggedTables
+	 *            whether to make the tables unlogged before loading them
+	 */
+	PostgresFixtureLoader(final DataSource dataSource, final int threads, final int bufferSize,
+			final boolean unloggedTables) {
+		if (threads <= 0 || bufferSize <= 0) {
+			throw new IllegalArgumentException(
+					"Threads and buffer size must be positive: " + threads + ", " + bufferSize);
+		}
+		this.dataSource = dataSource;
+		this.threads = threads;
+		this.bufferSize = bufferSize;
+		this.unloggedTables = unloggedTables;
+	}
+
+	/**
+	 * @param file
+	 *            a file
+	 * @return whether the file is a fixture file (.csv, .tsv or .txt, possibly
+	 *         followed by .gz or .zst)
+	 */
+	public static boolean isFixture(final File file) {
+		final String name = stripExtension(file.getName(), COMPRESSION_EXTENSIONS);
+		return !stripExtension(name, DATA_EXTENSIONS).equals(name);
+	}
+
+	/**
+	 * @param file
+	 *            a fixture file
+	 * @return the table the file loads into
+	 */
+	public static String getTableName(final File file) {
+		return stripExtension(stripExtension(file.getName(), COMPRESSION_EXTENSIONS), DATA_EXTENSIONS);
+	}
+
+	/**
+	 * @return the name without its extension if among the given ones, else the
+	 *         name
+	 */
+	private static String stripExtension(final String name, final String[] extensions) {
+		for (final String extension : extensions) {
+			if (name.toLowerCase(Locale.ROOT).endsWith(extension)) {
+				return name.substring(0, name.length() - extension.length());
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Load the given files, the files of a table one after the other and the
+	 * tables in parallel.
+	 *
+	 * @param files
+	 *            the fixture files
+	 * @param header
+	 *            whether CSV files start with a header line (skipped)
+	 * @param deferConstraints
+	 *            whether to drop the indexes and constraints of the tables (and
+	 *            the foreign keys referencing them) during the load
+	 * @return the result of each table, in the order of the given files
+	 * @throws SQLException
+	 *             if a file cannot be loaded, or an index or constraint cannot
+	 *             be recreated (the data then violating it)
+	 */
+	public List<LoadResult> load(final List<File> files, final boolean header, final boolean deferConstraints)
+			throws SQLException {
+		if (this.unloggedTables) {
+			PostgresEmbeddedServer.setTablesUnlogged(this.dataSource);
+		}
+		final Map<String, List<File>> tables = new LinkedHashMap<>();
+		for (final File file : files) {
+			tables.computeIfAbsent(getTableName(file), table -> new ArrayList<>()).add(file);
+		}
+		final AtomicInteger threadCount = new AtomicInteger();
+		final int threadMax = Math.min(this.threads, Math.max(1, tables.size()));
+		final ExecutorService loaders = Executors.newFixedThreadPool(threadMax, runnable -> {
+			final Thread thread = new Thread(runnable, "epg-copy-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			final DeferredConstraints deferred = deferConstraints ? this.dropConstraints(tables.keySet())
+					: new DeferredConstraints();
+			// foreign keys kept, a table loads once the tables it references did
+			final Map<String, Set<String>> references = deferConstraints ? Collections.emptyMap()
+					: this.readReferences(tables.keySet());
+			final Map<String, CompletableFuture<LoadResult>> loads = this.schedule(tables, references, header,
+					loaders);
+			final List<LoadResult> results = new ArrayList<>();
+			SQLException failure = null;
+			for (final String table : tables.keySet()) {
+				try {
+					results.add(loads.get(table).join());
+				} catch (final CompletionException e) {
+					final SQLException cause = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+							: new SQLException(e.getCause());
+					if (failure == null) {
+						failure = cause;
+					} else if (failure != cause) {
+						failure.setNextException(cause);
+					}
+				}
+			}
+			// recreated even after a failure, not to leave the schema altered
+			try {
+				this.recreateConstraints(deferred, loaders);
+			} catch (final SQLException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.setNextException(e);
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return results;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading fixtures", e);
+		} finally {
+			loaders.shutdownNow();
+		}
+	}
+
+	/**
+	 * Schedule the load of each table after the loads of the tables it
+	 * references, a failed load skipping the loads depending on it.
+	 */
+	private Map<String, CompletableFuture<LoadResult>> schedule(final Map<String, List<File>> tables,
+			final Map<String, Set<String>> references, final boolean header, final ExecutorService loaders)
+			throws SQLException {
+		final Map<String, CompletableFuture<LoadResult>> loads = new HashMap<>();
+		while (loads.size() < tables.size()) {
+			boolean scheduled = false;
+			for (final Map.Entry<String, List<File>> table : tables.entrySet()) {
+				final Set<String> referenced = references.getOrDefault(table.getKey(), Collections.emptySet());
+				if (loads.containsKey(table.getKey()) || !loads.keySet().containsAll(referenced)) {
+					continue;
+				}
+				final CompletableFuture<?>[] prerequisites = referenced.stream().map(loads::get)
+						.toArray(CompletableFuture<?>[]::new);
+				loads.put(table.getKey(), CompletableFuture.allOf(prerequisites).thenApplyAsync(done -> {
+					try {
+						return this.load(table.getKey(), table.getValue(), header);
+					} catch (final SQLException | IOException e) {
+						throw new CompletionException(e);
+					}
+				}, loaders));
+				scheduled = true;
+			}
+			if (!scheduled) {
+				final Set<String> remaining = new HashSet<>(tables.keySet());
+				remaining.removeAll(loads.keySet());
+				throw new SQLException("Cyclic foreign keys between " + remaining + ", defer the constraints");
+			}
+		}
+		return loads;
+	}
+
+	/**
+	 * @return the tables (among the given ones) referenced by each table
+	 */
+	private Map<String, Set<String>> readReferences(final Set<String> tables) throws SQLException {
+		final Map<String, Set<String>> references = new HashMap<>();
+		try (Connection connection = this.dataSource.getConnection();
+				PreparedStatement statement = connection.prepareStatement(REFERENCES_QUERY)) {
+			final Map<String, String> tableNames = new HashMap<>();
+			for (final String table : tables) {
+				tableNames.put(quoteTableName(table), table);
+			}
+			statement.setArray(1, connection.createArrayOf("text", tableNames.keySet().toArray()));
+			try (ResultSet reference = statement.executeQuery()) {
+				while (reference.next()) {
+					references.computeIfAbsent(tableNames.get(reference.getString(1)), table -> new HashSet<>())
+							.add(tableNames.get(reference.getString(2)));
+				}
+			}
+		}
+		return references;
+	}
+
+	private LoadResult load(final String table, final List<File> files, final boolean header)
+			throws SQLException, IOException {
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		long rows = 0;
+		long bytes = 0;
+		try (Connection connection = this.dataSource.getConnection()) {
+			try (Statement statement = connection.createStatement()) {
+				// nothing to wait for: a crash loses the fixtures anyway
+				statement.execute("SET synchronous_commit = off");
+			}
+			for (final File file : files) {
+				try (CountingInputStream counter = new CountingInputStream(Files.newInputStream(file.toPath()));
+						InputStream data = this.decompress(counter)) {
+					rows += connection.unwrap(PGConnection.class).getCopyAPI().copyIn(this.getCopy(table, file, header),
+							data, this.bufferSize);
+					bytes += counter.getByteCount();
+				} catch (final SQLException e) {
+					throw new SQLException("Could not load " + file + " into " + table + ": " + e.getMessage(),
+							e.getSQLState(), e);
+				}
+			}
+		}
+		watch.stop();
+		final LoadResult result = new LoadResult(table, rows, bytes, Duration.ofMillis(watch.getTime()));
+		log.info("Loaded {}", result);
+		return result;
+	}
+
+	private String getCopy(final String table, final File file, final boolean header) {
+		final String name = stripExtension(file.getName(), COMPRESSION_EXTENSIONS).toLowerCase(Locale.ROOT);
+		final String options = name.endsWith(".csv") ? header ? " (FORMAT csv, HEADER true)" : " (FORMAT csv)" : "";
+		return "COPY " + quoteTableName(table) + " FROM STDIN" + options;
+	}
+
+	/**
+	 * @return the decompressed stream (according to its first bytes)
+	 */
+	private InputStream decompress(final InputStream file) throws IOException {
+		final BufferedInputStream buffered = new BufferedInputStream(file, this.bufferSize);
+		final byte[] magic = new byte[ZSTD_MAGIC.length];
+		buffered.mark(magic.length);
+		final int length = buffered.read(magic);
+		buffered.reset();
+		if (startsWith(magic, length, GZIP_MAGIC)) {
+			return new GZIPInputStream(buffered, this.bufferSize);
+		}
+		if (startsWith(magic, length, ZSTD_MAGIC)) {
+			return ArchiveCodec.ZSTD.decompress(buffered);
+		}
+		return buffered;
+	}
+
+	private static boolean startsWith(final byte[] bytes, final int length, final byte[] prefix) {
+		if (length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (bytes[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the indexes and constraints of the given tables, and the foreign keys
+	 * referencing them.
+	 *
+	 * @return the statements recreating them
+	 */
+	private DeferredConstraints dropConstraints(final Iterable<String> tables) throws SQLException {
+		final List<String> names = new ArrayList<>();
+		tables.forEach(table -> names.add(quoteTableName(table)));
+		final List<String> drops = new ArrayList<>();
+		final DeferredConstraints deferred = new DeferredConstraints();
+		try (Connection connection = this.dataSource.getConnection()) {
+			final Array regclasses = connection.createArrayOf("text", names.toArray());
+			try (PreparedStatement constraints = connection.prepareStatement(CONSTRAINTS_QUERY)) {
+				constraints.setArray(1, regclasses);
+				constraints.setArray(2, regclasses);
+				try (ResultSet constraint = constraints.executeQuery()) {
+					// foreign keys first, other constraints may back them
+					while (constraint.next()) {
+						final String table = constraint.getString(1);
+						final String name = quoteIdentifier(constraint.getString(2));
+						drops.add("ALTER TABLE " + table + " DROP CONSTRAINT " + name);
+						(constraint.getString(3).equals("f") ? deferred.foreignKeys : deferred.constraints).add(
+								"ALTER TABLE " + table + " ADD CONSTRAINT " + name + " " + constraint.getString(4));
+					}
+				}
+			}
+			try (PreparedStatement indexes = connection.prepareStatement(INDEXES_QUERY)) {
+				indexes.setArray(1, regclasses);
+				try (ResultSet index = indexes.executeQuery()) {
+					while (index.next()) {
+						drops.add("DROP INDEX " + index.getString(1));
+						deferred.constraints.add(index.getString(2));
+					}
+				}
+			}
+			connection.setAutoCommit(false);
+			try (Statement statement = connection.createStatement()) {
+				for (final String drop : drops) {
+					statement.execute(drop);
+				}
+				connection.commit();
+			} catch (final SQLException e) {
+				connection.rollback();
+				throw e;
+			}
+		}
+		log.info("Deferred {} indexes and constraints until loaded", drops.size());
+		return deferred;
+	}
+
+	/**
+	 * Recreate the indexes and constraints (in parallel), then the foreign keys
+	 * (one after the other, locking both tables).
+	 */
+	private void recreateConstraints(final DeferredConstraints deferred, final ExecutorService builders)
+			throws SQLException, InterruptedException {
+		if (deferred.constraints.isEmpty() && deferred.foreignKeys.isEmpty()) {
+			return;
+		}
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		final List<Future<Void>> builds = new ArrayList<>();
+		for (final String create : deferred.constraints) {
+			builds.add(builders.submit(() -> {
+				this.execute(create);
+				return null;
+			}));
+		}
+		SQLException failure = null;
+		for (final Future<Void> build : builds) {
+			try {
+				build.get();
+			} catch (final ExecutionException e) {
+				final SQLException cause = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+						: new SQLException(e.getCause());
+				if (failure == null) {
+					failure = cause;
+				} else {
+					failure.setNextException(cause);
+				}
+			}
+		}
+		for (final String foreignKey : deferred.foreignKeys) {
+			try {
+				this.execute(foreignKey);
+			} catch (final SQLException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.setNextException(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		log.info("Recreated {} indexes and constraints in {}",
+				deferred.constraints.size() + deferred.foreignKeys.size(), watch);
+	}
+
+	private void execute(final String sql) throws SQLException {
+		try (Connection connection = this.dataSource.getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		} catch (final SQLException e) {
+			throw new SQLException("Could not run " + sql + ": " + e.getMessage(), e.getSQLState(), e);
+		}
+	}
+
+	private static String quoteIdentifier(final String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * @return the quoted table name, schema-qualified when the name contains a
+	 *         dot
+	 */
+	private static String quoteTableName(final String table) {
+		final int dot = table.indexOf('.');
+		return dot < 0 ? quoteIdentifier(table)
+				: quoteIdentifier(table.substring(0, dot)) + "." + quoteIdentifier(table.substring(dot + 1));
+	}
+
+	/**
+	 * Statements recreating the dropped indexes and constraints, foreign keys
+	 * apart (created last, once the keys they reference exist).
+	 */
+	private static final class DeferredConstraints {
+
+		private final List<String> constraints = new ArrayList<>();
+		private final List<String> foreignKeys = new ArrayList<>();
+
+	}
+
+	/**
+	 * The outcome of the load of a table.
+	 */
+	public static final class LoadResult {
+
+		private final String table;
+		private final long rows;
+		private final long bytes;
+		private final Duration duration;
+
+		private LoadResult(final String table, final long rows, final long bytes, final Duration duration) {
+			this.table = table;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.duration = duration;
+		}
+
+		public String getTable() {
+			return this.table;
+		}
+
+		public long getRows() {
+			return this.rows;
+		}
+
+		/**
+		 * @return the size of the files read (compressed, if so)
+		 */
+		public long getBytes() {
+			return this.bytes;
+		}
+
+		public Duration getDuration() {
+			return this.duration;
+		}
+
+		/**
+		 * @return the rows loaded per second
+		 */
+		public double getRowsPerSecond() {
+			return this.rows * 1000.0 / Math.max(1, this.duration.toMillis());
+		}
+
+		/**
+		 * @return the megabytes of files read per second
+		 */
+		public double getMegabytesPerSecond() {
+			return this.bytes / MB * 1000.0 / Math.max(1, this.duration.toMillis());
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d rows (%.1f MB) in %d ms (%.0f rows/s, %.1f MB/s)", this.table, this.rows,
+					this.bytes / MB, this.duration.toMillis(), this.getRowsPerSecond(),
+					this.getMegabytesPerSecond());
+		}
+
+	}
+
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Metadata of a postmaster kept running between builds, stored in the working
+ * directory next to the POSTGRES binaries.
+ * <p>
+ * While used, the metadata file is touched periodically (heartbeat): an idle
+ * timeout is enforced by a detached watchdog stopping the postmaster once the
+ * file has not been touched for that long, the JVM that started it being gone
+ * by then.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+class PostgresKeepAlive {
+
+	private static final String FINGERPRINT = "fingerprint";
+	private static final String PID = "pid";
+	private static final String PORT = "port";
+	private static final String POSTGRES_DIRECTORY = "postgresDirectory";
+
+	private static final Duration HEARTBEAT_PERIOD = Duration.ofSeconds(30);
+	private static final String WATCHDOG_SCRIPT = "while kill -0 \"$1\" 2>/dev/null; do sleep 30; "
+			+ "if [ -n \"$(find \"$2\" -mmin +\"$3\" 2>/dev/null)\" ]; then "
+			+ "\"$4\" -D \"$5\" stop -m fast -w; exit 0; fi; done";
+
+	private final File metadataFile;
+	private final String fingerprint;
+	private Thread heartbeat;
+
+	/**
+	 * @param workingDirectory
+	 *            the directory where storing the metadata
+	 * @param dataDirectory
+	 *            the data directory of the postmaster
+	 * @param fingerprint
+	 *            the hash of the server configuration
+	 */
+	PostgresKeepAlive(final File workingDirectory, final File dataDirectory, final String fingerprint) {
+		final String name = DigestUtils.md5Hex(dataDirectory.getAbsolutePath()).substring(0, 8);
+		this.metadataFile = new File(workingDirectory, "keep-alive-" + name + ".properties");
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * @return the postmaster recorded for the data directory, empty if none
+	 */
+	Optional<Instance> read() {
+		if (!this.metadataFile.isFile()) {
+			return Optional.empty();
+		}
+		final Properties metadata = new Properties();
+		try (InputStream input = Files.newInputStream(this.metadataFile.toPath())) {
+			metadata.load(input);
+			return Optional.of(new Instance(this.fingerprint.equals(metadata.getProperty(FINGERPRINT)),
+					Long.parseLong(metadata.getProperty(PID)), Integer.parseInt(metadata.getProperty(PORT)),
+					new File(metadata.getProperty(POSTGRES_DIRECTORY))));
+		} catch (final IOException | RuntimeException e) {
+			log.warn("Ignoring unreadable keep-alive metadata {}", this.metadataFile, e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Record the postmaster started for the data directory.
+	 */
+	void record(final long pid, final int port, final File postgresDirectory) throws IOException {
+		final Properties metadata = new Properties();
+		metadata.setProperty(FINGERPRINT, this.fingerprint);
+		metadata.setProperty(PID, String.valueOf(pid));
+		metadata.setProperty(PORT, String.valueOf(port));
+		metadata.setProperty(POSTGRES_DIRECTORY, postgresDirectory.getAbsolutePath());
+		// written aside then moved, so never read half written
+		final File temporaryFile = new File(this.metadataFile.getPath() + ".tmp");
+		try (OutputStream output = Files.newOutputStream(temporaryFile.toPath())) {
+			metadata.store(output, "POSTGRES server kept alive between builds");
+		}
+		Files.move(temporaryFile.toPath(), this.metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Touch the metadata file until {@link #release()} is called, so the
+	 * postmaster is not considered idle meanwhile.
+	 */
+	synchronized void startHeartbeat() {
+		if (this.heartbeat != null) {
+			return;
+		}
+		this.touch();
+		this.heartbeat = new Thread(() -> {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					Thread.sleep(HEARTBEAT_PERIOD.toMillis());
+					this.touch();
+				}
+			} catch (final InterruptedException e) {
+				// released
+			}
+		}, "postgres-keep-alive-heartbeat");
+		this.heartbeat.setDaemon(true);
+		this.heartbeat.start();
+	}
+
+	/**
+	 * Stop the heartbeat, the postmaster being idle from now on.
+	 */
+	synchronized void release() {
+		if (this.heartbeat != null) {
+			this.heartbeat.interrupt();
+			this.heartbeat = null;
+		}
+		this.touch();
+	}
+
+	/**
+	 * Launch a detached watchdog stopping the postmaster once idle for the given
+	 * time (rounded up to the minute). The watchdog ends with the postmaster.
+	 *
+	 * @param pid
+	 *            the pid of the postmaster
+	 * @param idleTimeout
+	 *            the idle time after which stopping the postmaster
+	 * @param pgCtl
+	 *            the path of pg_ctl
+	 * @param dataDirectory
+	 *            the data directory of the postmaster
+	 */
+	void startWatchdog(final long pid, final Duration idleTimeout, final String pgCtl, final File dataDirectory)
+			throws IOException {
+		final long minutes = Math.max(1, (idleTimeout.getSeconds() + 59) / 60);
+		final File nowhere = new File("/dev/null");
+		// find -mmin +N matches files last modified more than N minutes ago
+		new ProcessBuilder("sh", "-c", WATCHDOG_SCRIPT, "postgres-keep-alive-watchdog", String.valueOf(pid),
+				this.metadataFile.getAbsolutePath(), String.valueOf(minutes), pgCtl,
+				dataDirectory.getAbsolutePath()).redirectInput(Redirect.from(nowhere))
+						.redirectOutput(Redirect.to(nowhere)).redirectError(Redirect.to(nowhere)).start();
+		log.info("Postmaster {} will be stopped after {} minute(s) of inactivity", pid, minutes);
+	}
+
+	private void touch() {
+		if (this.metadataFile.exists() && !this.metadataFile.setLastModified(System.currentTimeMillis())) {
+			log.debug("Could not touch {}", this.metadataFile);
+		}
+	}
+
+	/**
+	 * A postmaster recorded as kept alive.
+	 */
+	static final class Instance {
+
+		private final boolean matching;
+		private final long pid;
+		private final int port;
+		private final File postgresDirectory;
+
+		private Instance(final boolean matching, final long pid, final int port, final File postgresDirectory) {
+			this.matching = matching;
+			this.pid = pid;
+			this.port = port;
+			this.postgresDirectory = postgresDirectory;
+		}
+
+		/**
+		 * @return whether it was started with the same configuration
+		 */
+		boolean isMatching() {
+			return this.matching;
+		}
+
+		long getPid() {
+			return this.pid;
+		}
+
+		int getPort() {
+			return this.port;
+		}
+
+		File getPostgresDirectory() {
+			return this.postgresDirectory;
+		}
+
+	}
+
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named sets of POSTGRES settings, applied unless explicitly configured
+ * otherwise.
+ *
+ * @author guillaume
+ *
+ */
+public enum PostgresProfile {
+
+	/**
+	 * POSTGRES defaults (besides the ones of the builder).
+	 */
+	DEFAULT,
+
+	/**
+	 * Durability off, for throwaway test clusters: nothing is flushed to disk,
+	 * WAL is kept minimal, checkpoints are rare and autovacuum is off. A crash
+	 * (of the server or the machine) may corrupt the cluster.
+	 */
+	FAST_TEST("fsync", "off", "full_page_writes", "off", "synchronous_commit", "off", "wal_level", "minimal",
+			"max_wal_senders", "0", "checkpoint_timeout", "1h", "max_wal_size", "1GB", "autovacuum", "off");
+
+	/**
+	 * Settings replication depends on, not applied when starting replicas.
+	 */
+	static final String[] REPLICATION_SETTINGS = { "wal_level", "max_wal_senders" };
+
+	private final Map<String, String> settings;
+
+	PostgresProfile(final String... settings) {
+		final Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < settings.length; i += 2) {
+			map.put(settings[i], settings[i + 1]);
+		}
+		this.settings = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * @return the settings of the profile
+	 */
+	public Map<String, String> getSettings() {
+		return this.settings;
+	}
+
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Places directories on a memory-backed filesystem (/dev/shm or another tmpfs
+ * mount), so the WAL writes, checkpoints and file copies of throwaway clusters
+ * never hit the build disk. Linux only.
+ * <p>
+ * A directory is only placed there when both the filesystem and the memory
+ * have room for it: tmpfs pages are taken from the memory, and swapped out
+ * when short of it.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+final class PostgresRamDisk {
+
+	private static final long MB = 1024 * 1024;
+	/**
+	 * Room needed by a data directory (WAL included) and by extracted binaries
+	 * (and their initdb template).
+	 */
+	static final long DATA_DIRECTORY_SIZE = 512 * MB;
+	static final long BINARIES_SIZE = 256 * MB;
+	/**
+	 * Jiffies per second of /proc/stat (USER_HZ, 100 on all Linux platforms).
+	 */
+	private static final long USER_HZ = 100;
+
+	private final File root;
+
+	private PostgresRamDisk(final File root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return the memory-backed filesystem of the host, empty if none is
+	 *         available
+	 */
+	static Optional<PostgresRamDisk> find() {
+		return findMountPoint().map(mountPoint -> new PostgresRamDisk(
+				new File(mountPoint, "embedded-pg-" + System.getProperty("user.name", "postgres"))));
+	}
+
+	private static Optional<File> findMountPoint() {
+		final File shm = new File("/dev/shm");
+		if (shm.isDirectory() && shm.canWrite()) {
+			return Optional.of(shm);
+		}
+		final File mounts = new File("/proc/mounts");
+		if (!mounts.isFile()) {
+			return Optional.empty();
+		}
+		try {
+			for (final String line : Files.readAllLines(mounts.toPath(), StandardCharsets.UTF_8)) {
+				// device mount-point type options dump pass
+				final String[] fields = line.split(" ");
+				if (fields.length > 3 && fields[2].equals("tmpfs") && !fields[3].startsWith("ro")
+						&& !fields[1].startsWith("/sys") && !fields[1].startsWith("/proc")) {
+					final File mountPoint = new File(fields[1].replace("\\040", " "));
+					if (mountPoint.isDirectory() && mountPoint.canWrite()) {
+						return Optional.of(mountPoint);
+					}
+				}
+			}
+		} catch (final IOException e) {
+			log.debug("Could not read mounts", e);
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @param dataDirectory
+	 *            the configured data directory
+	 * @return the data directory on the memory-backed filesystem, empty if short
+	 *         of room
+	 */
+	Optional<File> placeDataDirectory(final File dataDirectory) {
+		final String name = DigestUtils.md5Hex(dataDirectory.getAbsolutePath()).substring(0, 8);
+		return this.place(new File(new File(this.root, "data-" + name), dataDirectory.getName()),
+				DATA_DIRECTORY_SIZE);
+	}
+
+	/**
+	 * @return the working directory where extracting the binaries on the
+	 *         memory-backed filesystem, empty if short of room
+	 */
+	Optional<File> placeWorkingDirectory() {
+		return this.place(this.root, BINARIES_SIZE);
+	}
+
+	private Optional<File> place(final File directory, final long size) {
+		try {
+			Files.createDirectories(directory.getParentFile().toPath());
+			final long usable = Files.getFileStore(directory.getParentFile().toPath()).getUsableSpace();
+			final long available = getAvailableMemory().orElse(usable);
+			if (usable < size || available < size) {
+				log.warn("Not enough memory to place {} on {} ({} MB needed, {} MB free, {} MB of memory available)",
+						directory.getName(), this.root, size / MB, usable / MB, available / MB);
+				return Optional.empty();
+			}
+			return Optional.of(directory);
+		} catch (final IOException e) {
+			log.warn("Could not place {} on {}", directory.getName(), this.root, e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return the memory available without swapping (MemAvailable), empty if
+	 *         unknown
+	 */
+	private static Optional<Long> getAvailableMemory() {
+		try {
+			final List<String> lines = Files.readAllLines(Paths.get("/proc/meminfo"), StandardCharsets.US_ASCII);
+			for (final String line : lines) {
+				if (line.startsWith("MemAvailable:")) {
+					// MemAvailable:    5535708 kB
+					return Optional.of(Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024);
+				}
+			}
+		} catch (final IOException | RuntimeException e) {
+			log.debug("Available memory unknown", e);
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * @return the time all the CPUs of the host spent waiting for I/O since boot
+	 *         (in ms), empty if unknown
+	 */
+	static Optional<Long> getIoWaitMillis() {
+		try {
+			final List<String> lines = Files.readAllLines(Paths.get("/proc/stat"), StandardCharsets.US_ASCII);
+			// cpu user nice system idle iowait irq softirq...
+			final String[] fields = lines.get(0).trim().split("\\s+");
+			if (fields.length > 5 && fields[0].equals("cpu")) {
+				return Optional.of(Long.parseLong(fields[5]) * 1000 / USER_HZ);
+			}
+		} catch (final IOException | RuntimeException e) {
+			log.debug("I/O wait unknown", e);
+		}
+		return Optional.empty();
+	}
+
+}
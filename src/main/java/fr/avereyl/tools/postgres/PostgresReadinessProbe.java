@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+import org.newsclub.net.unix.AFUNIXSocketChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Minimal POSTGRES v3 protocol client telling whether a server accepts
+ * connections, without loading the JDBC driver nor authenticating.
+ * <p>
+ * A StartupMessage is sent and the first answer is read: any authentication
+ * request means connections are accepted, a <code>57P03</code>
+ * (cannot_connect_now) error means the server is starting up (or shutting down,
+ * or recovering). An SSLRequest alone would not tell: it is answered before the
+ * server state is checked.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+final class PostgresReadinessProbe {
+
+	/**
+	 * Server states seen by the probe.
+	 */
+	enum Status {
+		NOT_LISTENING, STARTING, READY
+	}
+
+	private static final int PROTOCOL_VERSION_3 = 196608;
+	private static final String SQLSTATE_CANNOT_CONNECT_NOW = "57P03";
+	private static final byte ERROR_RESPONSE = 'E';
+	private static final byte AUTHENTICATION_REQUEST = 'R';
+	private static final byte ERROR_FIELD_CODE = 'C';
+	private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
+	private PostgresReadinessProbe() {
+	}
+
+	/**
+	 * Probe the server listening on the given address.
+	 *
+	 * @param address
+	 *            the address of the server (TCP or Unix domain socket)
+	 * @param user
+	 *            the user name sent in the startup message
+	 * @param timeout
+	 *            maximum time to connect and read the answer
+	 * @return the server status
+	 */
+	static Status probe(final SocketAddress address, final String user, final Duration timeout) {
+		final long deadline = System.nanoTime() + timeout.toNanos();
+		try (SocketChannel channel = address instanceof AFUNIXSocketAddress ? AFUNIXSocketChannel.open()
+				: SocketChannel.open(); Selector selector = channel.provider().openSelector()) {
+			channel.configureBlocking(false);
+			if (!channel.connect(address)) {
+				channel.register(selector, SelectionKey.OP_CONNECT);
+				if (!select(selector, deadline)) {
+					return Status.NOT_LISTENING;
+				}
+				channel.finishConnect();
+			}
+			write(channel, selector, startupMessage(user), deadline);
+			final ByteBuffer header = read(channel, selector, ByteBuffer.allocate(5), deadline);
+			final byte type = header.get();
+			final int length = header.getInt() - 4;
+			if (type == AUTHENTICATION_REQUEST) {
+				// do not go further: the server closes the session on disconnection
+				return Status.READY;
+			}
+			if (type != ERROR_RESPONSE || length < 0 || length > MAX_MESSAGE_LENGTH) {
+				log.debug("Unexpected {} message from {}", (char) type, address);
+				return Status.STARTING;
+			}
+			final String sqlState = getSqlState(read(channel, selector, ByteBuffer.allocate(length), deadline));
+			log.debug("Error {} from {}", sqlState, address);
+			// other errors (unknown role or database...) come from a running server
+			return SQLSTATE_CANNOT_CONNECT_NOW.equals(sqlState) ? Status.STARTING : Status.READY;
+		} catch (final EOFException e) {
+			// connection closed during startup
+			return Status.STARTING;
+		} catch (final IOException e) {
+			return Status.NOT_LISTENING;
+		}
+	}
+
+	private static ByteBuffer startupMessage(final String user) {
+		final ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+		for (final String parameter : new String[] { "user", user, "database", "postgres" }) {
+			final byte[] bytes = parameter.getBytes(StandardCharsets.UTF_8);
+			parameters.write(bytes, 0, bytes.length);
+			parameters.write(0);
+		}
+		parameters.write(0);
+		final ByteBuffer message = ByteBuffer.allocate(8 + parameters.size());
+		message.putInt(message.capacity()).putInt(PROTOCOL_VERSION_3).put(parameters.toByteArray());
+		message.flip();
+		return message;
+	}
+
+	/**
+	 * @return the SQLSTATE code of an ErrorResponse body, null if missing
+	 */
+	private static String getSqlState(final ByteBuffer body) {
+		while (body.hasRemaining()) {
+			final byte field = body.get();
+			if (field == 0) {
+				break;
+			}
+			final int start = body.position();
+			while (body.hasRemaining() && body.get() != 0) {
+				// read up to the end of the field value
+			}
+			if (field == ERROR_FIELD_CODE) {
+				return new String(body.array(), start, body.position() - start - 1, StandardCharsets.US_ASCII);
+			}
+		}
+		return null;
+	}
+
+	private static void write(final SocketChannel channel, final Selector selector, final ByteBuffer buffer,
+			final long deadline) throws IOException {
+		channel.register(selector, SelectionKey.OP_WRITE);
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0 && !select(selector, deadline)) {
+				throw new IOException("Timed out writing to " + channel);
+			}
+		}
+	}
+
+	private static ByteBuffer read(final SocketChannel channel, final Selector selector, final ByteBuffer buffer,
+			final long deadline) throws IOException {
+		channel.register(selector, SelectionKey.OP_READ);
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer);
+			if (read == -1) {
+				throw new EOFException("Connection closed by " + channel);
+			}
+			if (read == 0 && !select(selector, deadline)) {
+				throw new IOException("Timed out reading from " + channel);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return false if the deadline has been reached without any ready channel
+	 */
+	private static boolean select(final Selector selector, final long deadline) throws IOException {
+		final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		if (remainingMs <= 0) {
+			return false;
+		}
+		final boolean selected = selector.select(remainingMs) > 0;
+		selector.selectedKeys().clear();
+		return selected;
+	}
+
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.time.StopWatch;
+
+import fr.avereyl.tools.traits.FileSystemAware;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hot-standby replicas streaming from a primary server.
+ * <p>
+ * A single non-exclusive base backup of the primary is copied into all the
+ * replica data directories at once, each replica then streaming through its
+ * own physical replication slot (so the primary keeps the WAL it still needs).
+ * Replica data directories are recreated on each start and deleted when
+ * closed.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+class PostgresReplicaSet implements FileSystemAware {
+
+	private static final String SLOT_PREFIX = "replica_";
+	private static final String REPLICA_INFIX = "-replica-";
+
+	/**
+	 * Files never copied into a base backup, and directories whose files are
+	 * not copied (as done by pg_basebackup).
+	 */
+	private static final Set<String> EXCLUDED_FILES = new HashSet<>(Arrays.asList("postmaster.pid",
+			"postmaster.opts", "backup_label", "tablespace_map", "pg_internal.init"));
+	private static final Set<String> EXCLUDED_CONTENTS = new HashSet<>(Arrays.asList("pg_wal", "pg_replslot",
+			"pg_stat_tmp", "pg_dynshmem", "pg_notify", "pg_serial", "pg_snapshots", "pg_subtrans"));
+
+	private final PostgresEmbeddedServer primary;
+	private final List<PostgresEmbeddedServer> replicas = new ArrayList<>();
+
+	/**
+	 * @param primary
+	 *            the (started) primary server
+	 */
+	PostgresReplicaSet(final PostgresEmbeddedServer primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * Copy the primary into the replica data directories then start the
+	 * replicas concurrently.
+	 *
+	 * @param count
+	 *            the number of replicas
+	 * @param connectionConfig
+	 *            the connection properties
+	 * @throws IOException
+	 *             if a replica cannot be created or started
+	 */
+	void start(final int count, final Map<String, String> connectionConfig) throws IOException {
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		final File primaryDirectory = this.primary.getDataDirectory().getAbsoluteFile();
+		final List<File> directories = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			directories.add(new File(primaryDirectory.getParentFile(), primaryDirectory.getName() + REPLICA_INFIX + i));
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(count);
+		try {
+			final String backupLabel = this.backUp(primaryDirectory, directories, executor);
+			final int majorVersion = this.getMajorVersion(primaryDirectory);
+			for (int i = 0; i < count; i++) {
+				this.configureStandby(directories.get(i), SLOT_PREFIX + (i + 1), backupLabel, majorVersion);
+			}
+			log.info("{} replica data directories copied in {}", count, watch);
+
+			final List<Future<PostgresEmbeddedServer>> startups = new ArrayList<>();
+			for (final File directory : directories) {
+				startups.add(executor.submit(() -> {
+					final PostgresEmbeddedServer replica = this.primary.replicaBuilder(directory).build();
+					replica.start(connectionConfig);
+					return replica;
+				}));
+			}
+			for (final Future<PostgresEmbeddedServer> startup : startups) {
+				this.replicas.add(startup.get());
+			}
+			log.info("{} replicas started in {}", count, watch);
+		} catch (final ExecutionException e) {
+			this.close();
+			throw new IOException("Could not start the replicas", e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.close();
+			throw new InterruptedIOException("Interrupted while starting the replicas");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Take a non-exclusive base backup of the primary, copied concurrently into
+	 * all the given directories.
+	 *
+	 * @return the content of the backup_label file
+	 */
+	private String backUp(final File primaryDirectory, final List<File> directories, final ExecutorService executor)
+			throws IOException, ExecutionException, InterruptedException {
+		try (Connection connection = this.primary.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement()) {
+			for (int i = 1; i <= directories.size(); i++) {
+				this.createSlot(connection, SLOT_PREFIX + i);
+			}
+			final boolean legacy = connection.getMetaData().getDatabaseMajorVersion() < 15;
+			// non-exclusive: the backup is bound to this session (aborted if closed)
+			statement.execute(legacy ? "SELECT pg_start_backup('replicas', true, false)"
+					: "SELECT pg_backup_start('replicas', true)");
+			final List<Future<Long>> copies = new ArrayList<>();
+			for (final File directory : directories) {
+				copies.add(executor.submit(() -> {
+					if (directory.exists()) {
+						this.deleteDirectory(directory);
+					}
+					final long copied = this.copyDirectory(primaryDirectory, directory, PostgresReplicaSet::isBackedUp);
+					final PosixFileAttributeView view = Files.getFileAttributeView(directory.toPath(),
+							PosixFileAttributeView.class);
+					if (view != null) {
+						view.setPermissions(PosixFilePermissions.fromString("rwx------"));
+					}
+					return copied;
+				}));
+			}
+			for (final Future<Long> copy : copies) {
+				copy.get();
+			}
+			try (ResultSet result = statement.executeQuery(
+					legacy ? "SELECT labelfile FROM pg_stop_backup(false)" : "SELECT labelfile FROM pg_backup_stop()")) {
+				result.next();
+				return result.getString(1);
+			}
+		} catch (final SQLException e) {
+			throw new IOException("Could not back up the primary", e);
+		}
+	}
+
+	private void createSlot(final Connection connection, final String name) throws SQLException {
+		// kept from a previous start when the primary data directory is
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT pg_create_physical_replication_slot(?, true) WHERE NOT EXISTS "
+						+ "(SELECT 1 FROM pg_replication_slots WHERE slot_name = ?)")) {
+			statement.setString(1, name);
+			statement.setString(2, name);
+			statement.executeQuery().close();
+		}
+	}
+
+	/**
+	 * Write the backup label and the standby configuration: recovery.conf before
+	 * POSTGRES 12, standby.signal and postgresql.auto.conf since.
+	 */
+	private void configureStandby(final File directory, final String slot, final String backupLabel,
+			final int majorVersion) throws IOException {
+		Files.write(new File(directory, "backup_label").toPath(), backupLabel.getBytes(StandardCharsets.UTF_8));
+		final File socketFile = this.primary.getSocketFile();
+		final String host = socketFile != null ? socketFile.getParent() : "localhost";
+		final List<String> settings = Arrays.asList(
+				"primary_conninfo = 'host=" + host + " port=" + this.primary.getPort() + " user="
+						+ PostgresEmbeddedServer.PG_SUPERUSER + " application_name=" + slot + "'",
+				"primary_slot_name = '" + slot + "'");
+		if (majorVersion < 12) {
+			final List<String> recovery = new ArrayList<>(settings);
+			recovery.add(0, "standby_mode = 'on'");
+			Files.write(new File(directory, "recovery.conf").toPath(), recovery, StandardCharsets.UTF_8);
+		} else {
+			Files.write(new File(directory, "standby.signal").toPath(), new byte[0]);
+			Files.write(new File(directory, "postgresql.auto.conf").toPath(), settings, StandardCharsets.UTF_8,
+					StandardOpenOption.APPEND);
+		}
+	}
+
+	private int getMajorVersion(final File directory) throws IOException {
+		final String version = new String(Files.readAllBytes(new File(directory, "PG_VERSION").toPath()),
+				StandardCharsets.US_ASCII).trim();
+		// 9.6, 10, 11...
+		return Integer.parseInt(version.split("\\.")[0]);
+	}
+
+	/**
+	 * @return the started replicas
+	 */
+	List<PostgresEmbeddedServer> getReplicas() {
+		return Collections.unmodifiableList(this.replicas);
+	}
+
+	/**
+	 * @return the number of WAL bytes each streaming replica (by slot name) has
+	 *         not replayed yet
+	 */
+	Map<String, Long> getReplicationLag() throws SQLException {
+		final Map<String, Long> lags = new LinkedHashMap<>();
+		try (Connection connection = this.primary.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement();
+				ResultSet result = statement.executeQuery("SELECT application_name, "
+						+ "pg_wal_lsn_diff(pg_current_wal_lsn(), replay_lsn) FROM pg_stat_replication "
+						+ "ORDER BY application_name")) {
+			while (result.next()) {
+				lags.put(result.getString(1), result.getLong(2));
+			}
+		}
+		return lags;
+	}
+
+	/**
+	 * Wait for all the replicas to replay the WAL written so far on the primary.
+	 *
+	 * @return the time the replicas took to catch up
+	 * @throws SQLException
+	 *             if the replicas did not catch up in time
+	 */
+	Duration awaitReplication(final Duration timeout) throws SQLException {
+		final long start = System.nanoTime();
+		try (Connection connection = this.primary.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement();
+				PreparedStatement caughtUp = connection.prepareStatement(
+						"SELECT count(*) FROM pg_stat_replication WHERE replay_lsn >= ?::pg_lsn")) {
+			final String target;
+			try (ResultSet result = statement.executeQuery("SELECT pg_current_wal_lsn()::text")) {
+				result.next();
+				target = result.getString(1);
+			}
+			caughtUp.setString(1, target);
+			long backoffMs = 1;
+			while (true) {
+				try (ResultSet result = caughtUp.executeQuery()) {
+					result.next();
+					if (result.getInt(1) >= this.replicas.size()) {
+						return Duration.ofNanos(System.nanoTime() - start);
+					}
+				}
+				if (System.nanoTime() - start > timeout.toNanos()) {
+					throw new SQLException("Replicas did not replay " + target + " within " + timeout);
+				}
+				TimeUnit.MILLISECONDS.sleep(backoffMs);
+				backoffMs = Math.min(backoffMs * 2, 50);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the replicas", e);
+		}
+	}
+
+	/**
+	 * Stop the replicas (deleting their data directories) then drop their
+	 * replication slots.
+	 */
+	void close() {
+		final List<PostgresEmbeddedServer> started = new ArrayList<>(this.replicas);
+		this.replicas.clear();
+		started.stream().map(PostgresEmbeddedServer::closeAsync).forEach(closing -> {
+			try {
+				closing.join();
+			} catch (final RuntimeException e) {
+				log.warn("Could not stop a replica", e);
+			}
+		});
+		try (Connection connection = this.primary.getPostgresDatabase().getConnection();
+				Statement statement = connection.createStatement()) {
+			statement.executeQuery("SELECT pg_drop_replication_slot(slot_name) FROM pg_replication_slots "
+					+ "WHERE slot_name LIKE '" + SLOT_PREFIX + "%' AND NOT active").close();
+		} catch (final SQLException e) {
+			log.warn("Could not drop the replication slots", e);
+		}
+	}
+
+	/**
+	 * @return whether the given file of a live data directory is part of a base
+	 *         backup
+	 */
+	private static boolean isBackedUp(final Path path) {
+		final String name = String.valueOf(path.getFileName());
+		if (EXCLUDED_FILES.contains(name)) {
+			return false;
+		}
+		final Path parent = path.getParent();
+		return parent == null || !EXCLUDED_CONTENTS.contains(String.valueOf(parent.getFileName()))
+				|| Files.isDirectory(path);
+	}
+
+}
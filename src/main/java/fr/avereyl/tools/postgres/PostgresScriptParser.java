@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Optional;
+
+/**
+ * Splits a SQL script into statements as it is read, never holding more than
+ * the current statement in memory.
+ * <p>
+ * Statements end with a semicolon outside of quoted strings and identifiers,
+ * escape strings (E'...'), dollar-quoted bodies ($$...$$, $tag$...$tag$) and
+ * comments (nested block comments included). Comments are left out of the
+ * statements. The inline data of a <code>COPY ... FROM stdin</code> statement
+ * is read with {@link #readCopyData()}.
+ *
+ * @author guillaume
+ *
+ */
+class PostgresScriptParser {
+
+	private static final int END = -1;
+
+	private final Reader reader;
+	private int pending = END;
+	private boolean hasPending;
+	private int line = 1;
+
+	/**
+	 * @param reader
+	 *            the script (buffered by the caller)
+	 */
+	PostgresScriptParser(final Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * @return the next statement (without its semicolon), empty at the end of the
+	 *         script
+	 * @throws IOException
+	 *             if the script cannot be read or ends within a quoted string or
+	 *             a comment
+	 */
+	Optional<ParsedStatement> next() throws IOException {
+		final StringBuilder sql = new StringBuilder();
+		int startLine = 0;
+		int previous = ' ';
+		for (int c = this.read(); c != END; c = this.read()) {
+			if (c == ';') {
+				if (startLine > 0) {
+					return Optional.of(new ParsedStatement(sql.toString().trim(), startLine));
+				}
+				continue;
+			}
+			if (c == '-' && this.peek() == '-') {
+				this.skipLineComment();
+				c = '\n';
+			} else if (c == '/' && this.peek() == '*') {
+				this.read();
+				this.skipBlockComment();
+				c = ' ';
+			}
+			if (startLine == 0 && !Character.isWhitespace(c)) {
+				startLine = this.line;
+			}
+			sql.append((char) c);
+			if (c == '\'') {
+				this.readQuoted(sql, '\'', (previous == 'E' || previous == 'e') && !this.isIdentifierEnd(sql, 2));
+			} else if (c == '"') {
+				this.readQuoted(sql, '"', false);
+			} else if (c == '$' && !isIdentifierPart(previous)) {
+				this.readDollarQuoted(sql);
+			}
+			previous = sql.charAt(sql.length() - 1);
+		}
+		return startLine > 0 ? Optional.of(new ParsedStatement(sql.toString().trim(), startLine)) : Optional.empty();
+	}
+
+	/**
+	 * Read the inline data following the statement just returned (a
+	 * <code>COPY ... FROM stdin</code>), from the next line up to the
+	 * <code>\.</code> line, as pg_dump writes it. The data must be fully read
+	 * before the next statement.
+	 *
+	 * @return the data lines (without the end marker), read as they are consumed
+	 * @throws IOException
+	 *             if the script cannot be read
+	 */
+	Reader readCopyData() throws IOException {
+		// rest of the statement line
+		this.skipLineComment();
+		final int startLine = this.line;
+		return new Reader() {
+
+			private final StringBuilder current = new StringBuilder();
+			private int position;
+			private boolean ended;
+
+			@Override
+			public int read(final char[] buffer, final int offset, final int length) throws IOException {
+				if (length == 0) {
+					return 0;
+				}
+				if (this.position == this.current.length() && !this.readLine()) {
+					return -1;
+				}
+				final int count = Math.min(length, this.current.length() - this.position);
+				this.current.getChars(this.position, this.position + count, buffer, offset);
+				this.position += count;
+				return count;
+			}
+
+			private boolean readLine() throws IOException {
+				if (this.ended) {
+					return false;
+				}
+				this.current.setLength(0);
+				this.position = 0;
+				int c = PostgresScriptParser.this.read();
+				while (c != END && c != '\n') {
+					this.current.append((char) c);
+					c = PostgresScriptParser.this.read();
+				}
+				final String line = this.current.toString();
+				if (line.equals("\\.") || line.equals("\\.\r")) {
+					this.ended = true;
+					this.current.setLength(0);
+					return false;
+				}
+				if (c == END) {
+					throw new IOException("COPY data starting on line " + startLine + " does not end with \\.");
+				}
+				this.current.append('\n');
+				return true;
+			}
+
+			@Override
+			public void close() {
+				// the script is closed by its reader
+			}
+
+		};
+	}
+
+	/**
+	 * @return whether the character before the last <code>offset</code> ones is
+	 *         part of an identifier (the E of E'...' then being one too)
+	 */
+	private boolean isIdentifierEnd(final StringBuilder sql, final int offset) {
+		return sql.length() > offset && isIdentifierPart(sql.charAt(sql.length() - offset - 1));
+	}
+
+	private void readQuoted(final StringBuilder sql, final char quote, final boolean escapes) throws IOException {
+		final int startLine = this.line;
+		for (int c = this.read(); c != END; c = this.read()) {
+			sql.append((char) c);
+			if (escapes && c == '\\') {
+				final int escaped = this.read();
+				if (escaped == END) {
+					break;
+				}
+				sql.append((char) escaped);
+			} else if (c == quote) {
+				// a doubled quote is read as two consecutive quoted strings
+				return;
+			}
+		}
+		throw new IOException("Unterminated quoted string starting on line " + startLine);
+	}
+
+	/**
+	 * Read a dollar-quoted string if the $ just read opens one, else leave the
+	 * characters read (e.g. a $1 parameter) in the statement.
+	 */
+	private void readDollarQuoted(final StringBuilder sql) throws IOException {
+		final int startLine = this.line;
+		final StringBuilder tag = new StringBuilder("$");
+		int c = this.read();
+		while (c != END && c != '$' && isIdentifierPart(c) && !(tag.length() == 1 && Character.isDigit(c))) {
+			tag.append((char) c);
+			c = this.read();
+		}
+		if (c != '$') {
+			sql.append(tag, 1, tag.length());
+			this.unread(c);
+			return;
+		}
+		tag.append('$');
+		sql.append(tag, 1, tag.length());
+		final String delimiter = tag.toString();
+		final int bodyStart = sql.length();
+		for (c = this.read(); c != END; c = this.read()) {
+			sql.append((char) c);
+			if (c == '$' && sql.length() - bodyStart >= delimiter.length()
+					&& sql.indexOf(delimiter, sql.length() - delimiter.length()) >= 0) {
+				return;
+			}
+		}
+		throw new IOException("Unterminated dollar-quoted string " + delimiter + " starting on line " + startLine);
+	}
+
+	private void skipLineComment() throws IOException {
+		int c = this.read();
+		while (c != END && c != '\n') {
+			c = this.read();
+		}
+	}
+
+	private void skipBlockComment() throws IOException {
+		final int startLine = this.line;
+		int depth = 1;
+		for (int c = this.read(); c != END; c = this.read()) {
+			if (c == '*' && this.peek() == '/') {
+				this.read();
+				if (--depth == 0) {
+					return;
+				}
+			} else if (c == '/' && this.peek() == '*') {
+				this.read();
+				depth++;
+			}
+		}
+		throw new IOException("Unterminated comment starting on line " + startLine);
+	}
+
+	private int read() throws IOException {
+		final int c;
+		if (this.hasPending) {
+			this.hasPending = false;
+			c = this.pending;
+		} else {
+			c = this.reader.read();
+		}
+		if (c == '\n') {
+			this.line++;
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (!this.hasPending) {
+			this.pending = this.reader.read();
+			this.hasPending = true;
+		}
+		return this.pending;
+	}
+
+	private void unread(final int c) {
+		if (c == '\n') {
+			this.line--;
+		}
+		this.pending = c;
+		this.hasPending = true;
+	}
+
+	private static boolean isIdentifierPart(final int c) {
+		return c == '_' || c == '$' || Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * A statement of a script, with the line it starts on.
+	 */
+	static final class ParsedStatement {
+
+		private final String sql;
+		private final int line;
+
+		private ParsedStatement(final String sql, final int line) {
+			this.sql = sql;
+			this.line = line;
+		}
+
+		String getSql() {
+			return this.sql;
+		}
+
+		int getLine() {
+			return this.line;
+		}
+
+	}
+
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.postgres;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.postgresql.PGConnection;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs SQL scripts on a database, statements being sent in JDBC batches (one
+ * round-trip per batch) and independent scripts being run in parallel, each on
+ * its own connection.
+ * <p>
+ * A script runs once the scripts it depends on succeeded, as declared by
+ * <code>-- depends-on: a.sql, b.sql</code> comments in its header (paths
+ * relative to the script). Statements returning rows or not allowed in a
+ * transaction block (VACUUM, CREATE DATABASE...) are sent on their own. The
+ * inline data of <code>COPY ... FROM stdin</code> statements (pg_dump format)
+ * is streamed through the COPY protocol.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+public class PostgresScriptRunner {
+
+	private static final Pattern DEPENDS_ON = Pattern.compile("^\\s*--\\s*depends-on\\s*:(.*)$",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern BATCH_ENTRY = Pattern.compile("Batch entry (\\d+)");
+	private static final Pattern COPY_FROM_STDIN = Pattern.compile("^COPY\\b.*\\bFROM\\s+STDIN\\b",
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	/**
+	 * Statements that cannot be batched: returning rows, or not allowed in the
+	 * (implicit) transaction of a batch.
+	 */
+	private static final Pattern STANDALONE = Pattern.compile("^(?:SELECT|WITH|VALUES|TABLE|SHOW|EXPLAIN|CALL"
+			+ "|VACUUM|ANALY[SZ]E|CLUSTER|REINDEX|CHECKPOINT|ALTER\\s+SYSTEM|(?:CREATE|DROP)\\s+(?:DATABASE|TABLESPACE)"
+			+ "|(?:CREATE|DROP)\\s+(?:UNIQUE\\s+)?INDEX\\s+CONCURRENTLY|COPY)\\b|\\bRETURNING\\b",
+			Pattern.CASE_INSENSITIVE);
+
+	private final DataSource dataSource;
+	private final int threads;
+	private final int batchSize;
+	private final boolean unloggedTables;
+
+	/**
+	 * @param dataSource
+	 *            the database to run the scripts on
+	 * @param threads
+	 *            the maximum number of scripts run at once (and of connections)
+	 * @param batchSize
+	 *            the maximum number of statements sent at once
+	 * @param unloggedTables
+	 *            whether to make the tables unlogged once the scripts ran
+	 */
+	PostgresScriptRunner(final DataSource dataSource, final int threads, final int batchSize,
+			final boolean unloggedTables) {
+		if (threads <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException(
+					"Threads and batch size must be positive: " + threads + ", " + batchSize);
+		}
+		this.dataSource = dataSource;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.unloggedTables = unloggedTables;
+	}
+
+	/**
+	 * Run the given scripts, in parallel unless depending on each other. Once a
+	 * script failed, the scripts depending on it are skipped while the others
+	 * still run.
+	 *
+	 * @param scripts
+	 *            the scripts to run
+	 * @param ordered
+	 *            whether each script depends on the previous one (sequential
+	 *            run)
+	 * @return the result of each script, in the given order
+	 * @throws SQLException
+	 *             if a script failed, is missing or the dependencies are cyclic
+	 */
+	public List<ScriptResult> run(final List<File> scripts, final boolean ordered) throws SQLException {
+		final Map<File, List<File>> dependencies = this.readDependencies(scripts, ordered);
+		final AtomicInteger threadCount = new AtomicInteger();
+		final int threadMax = Math.min(this.threads, Math.max(1, scripts.size()));
+		final ExecutorService runners = Executors.newFixedThreadPool(threadMax, runnable -> {
+			final Thread thread = new Thread(runnable, "epg-sql-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			// nothing runs before all the scripts are scheduled (dependencies checked)
+			final CompletableFuture<Void> start = new CompletableFuture<>();
+			final Map<File, CompletableFuture<ScriptResult>> runs = new LinkedHashMap<>();
+			for (final File script : scripts) {
+				this.schedule(script, dependencies, runs, new ArrayList<>(), start, runners);
+			}
+			start.complete(null);
+			final List<ScriptResult> results = new ArrayList<>();
+			SQLException failure = null;
+			for (final CompletableFuture<ScriptResult> run : runs.values()) {
+				try {
+					results.add(run.join());
+				} catch (final CompletionException e) {
+					final SQLException cause = e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+							: new SQLException(e.getCause());
+					if (failure == null) {
+						failure = cause;
+					} else if (failure != cause) {
+						failure.setNextException(cause);
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			if (this.unloggedTables) {
+				// all at once: a table unlogged before the tables referencing it are created breaks them
+				PostgresEmbeddedServer.setTablesUnlogged(this.dataSource);
+			}
+			return results;
+		} finally {
+			runners.shutdownNow();
+		}
+	}
+
+	private CompletableFuture<ScriptResult> schedule(final File script, final Map<File, List<File>> dependencies,
+			final Map<File, CompletableFuture<ScriptResult>> runs, final List<File> path,
+			final CompletableFuture<Void> start, final ExecutorService runners) throws SQLException {
+		final CompletableFuture<ScriptResult> scheduled = runs.get(script);
+		if (scheduled != null) {
+			return scheduled;
+		}
+		if (path.contains(script)) {
+			path.add(script);
+			throw new SQLException("Cyclic script dependencies: " + path);
+		}
+		path.add(script);
+		final List<CompletableFuture<?>> prerequisites = new ArrayList<>();
+		prerequisites.add(start);
+		for (final File dependency : dependencies.get(script)) {
+			prerequisites.add(this.schedule(dependency, dependencies, runs, path, start, runners));
+		}
+		path.remove(path.size() - 1);
+		final CompletableFuture<ScriptResult> run = CompletableFuture
+				.allOf(prerequisites.toArray(new CompletableFuture<?>[0])).thenApplyAsync(done -> {
+					try {
+						return this.runScript(script);
+					} catch (final SQLException e) {
+						throw new CompletionException(e);
+					}
+				}, runners);
+		runs.put(script, run);
+		return run;
+	}
+
+	private Map<File, List<File>> readDependencies(final List<File> scripts, final boolean ordered)
+			throws SQLException {
+		final Map<File, File> canonicalScripts = new HashMap<>();
+		for (final File script : scripts) {
+			canonicalScripts.put(this.canonical(script), script);
+		}
+		final Map<File, List<File>> dependencies = new HashMap<>();
+		File previous = null;
+		for (final File script : scripts) {
+			final List<File> scriptDependencies = new ArrayList<>();
+			if (ordered && previous != null) {
+				scriptDependencies.add(previous);
+			}
+			try (BufferedReader reader = Files.newBufferedReader(script.toPath(), StandardCharsets.UTF_8)) {
+				// directives are only looked for in the header (comments and blank lines)
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					final String trimmed = line.trim();
+					if (!trimmed.isEmpty() && !trimmed.startsWith("--")) {
+						break;
+					}
+					final Matcher matcher = DEPENDS_ON.matcher(line);
+					if (!matcher.matches()) {
+						continue;
+					}
+					for (final String name : matcher.group(1).split(",")) {
+						if (name.trim().isEmpty()) {
+							continue;
+						}
+						final File dependency = canonicalScripts
+								.get(this.canonical(new File(script.getAbsoluteFile().getParentFile(), name.trim())));
+						if (dependency == null) {
+							throw new SQLException(script + " depends on " + name.trim() + ", not part of the scripts");
+						}
+						scriptDependencies.add(dependency);
+					}
+				}
+			} catch (final IOException e) {
+				throw new SQLException("Could not read " + script, e);
+			}
+			dependencies.put(script, scriptDependencies);
+			previous = script;
+		}
+		return dependencies;
+	}
+
+	private File canonical(final File file) throws SQLException {
+		try {
+			return file.getCanonicalFile();
+		} catch (final IOException e) {
+			throw new SQLException("Could not resolve " + file, e);
+		}
+	}
+
+	/**
+	 * Run a script on its own connection, in autocommit mode (each batch being
+	 * run as a transaction).
+	 */
+	private ScriptResult runScript(final File script) throws SQLException {
+		final StopWatch watch = new StopWatch();
+		watch.start();
+		int statements = 0;
+		final List<PostgresScriptParser.ParsedStatement> batch = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(script.toPath(), StandardCharsets.UTF_8);
+				Connection connection = this.dataSource.getConnection();
+				Statement statement = connection.createStatement()) {
+			connection.setAutoCommit(true);
+			final PostgresScriptParser parser = new PostgresScriptParser(reader);
+			for (Optional<PostgresScriptParser.ParsedStatement> parsed = parser.next(); parsed
+					.isPresent(); parsed = parser.next()) {
+				statements++;
+				if (COPY_FROM_STDIN.matcher(parsed.get().getSql()).find()) {
+					this.executeBatch(script, statement, batch);
+					try {
+						connection.unwrap(PGConnection.class).getCopyAPI().copyIn(parsed.get().getSql(),
+								parser.readCopyData());
+					} catch (final SQLException e) {
+						throw this.failure(script, parsed.get(), e);
+					}
+				} else if (STANDALONE.matcher(parsed.get().getSql()).find()) {
+					this.executeBatch(script, statement, batch);
+					try {
+						statement.execute(parsed.get().getSql());
+					} catch (final SQLException e) {
+						throw this.failure(script, parsed.get(), e);
+					}
+				} else {
+					statement.addBatch(parsed.get().getSql());
+					batch.add(parsed.get());
+					if (batch.size() >= this.batchSize) {
+						this.executeBatch(script, statement, batch);
+					}
+				}
+			}
+			this.executeBatch(script, statement, batch);
+		} catch (final IOException e) {
+			throw new SQLException("Could not read " + script, e);
+		}
+		watch.stop();
+		final ScriptResult result = new ScriptResult(script, statements, Duration.ofMillis(watch.getTime()));
+		log.info("Ran {}", result);
+		return result;
+	}
+
+	private void executeBatch(final File script, final Statement statement,
+			final List<PostgresScriptParser.ParsedStatement> batch) throws SQLException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			statement.executeBatch();
+		} catch (final BatchUpdateException e) {
+			// the whole batch is rolled back, only the message names the failing entry
+			final Matcher entry = BATCH_ENTRY.matcher(String.valueOf(e.getMessage()));
+			final int failed = entry.find() ? Math.min(Integer.parseInt(entry.group(1)), batch.size() - 1) : 0;
+			throw this.failure(script, batch.get(failed),
+					e.getNextException() == null ? e : e.getNextException());
+		} finally {
+			statement.clearBatch();
+			batch.clear();
+		}
+	}
+
+	private SQLException failure(final File script, final PostgresScriptParser.ParsedStatement statement,
+			final SQLException cause) {
+		return new SQLException(script + ":" + statement.getLine() + ": " + cause.getMessage(), cause.getSQLState(),
+				cause);
+	}
+
+	/**
+	 * The outcome of a script run.
+	 */
+	public static final class ScriptResult {
+
+		private final File script;
+		private final int statements;
+		private final Duration duration;
+
+		private ScriptResult(final File script, final int statements, final Duration duration) {
+			this.script = script;
+			this.statements = statements;
+			this.duration = duration;
+		}
+
+		public File getScript() {
+			return this.script;
+		}
+
+		public int getStatements() {
+			return this.statements;
+		}
+
+		public Duration getDuration() {
+			return this.duration;
+		}
+
+		/**
+		 * @return the statements run per second
+		 */
+		public double getThroughput() {
+			return this.statements * 1000.0 / Math.max(1, this.duration.toMillis());
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d statements in %d ms (%.0f statements/s)", this.script.getName(),
+					this.statements, this.duration.toMillis(), this.getThroughput());
+		}
+
+	}
+
+}
@@ -16,6 +16,27 @@
 package fr.avereyl.tools.traits;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.commons.io.FileUtils;
 
 public interface FileSystemAware {
 
@@ -42,4 +63,203 @@ public interface FileSystemAware {
 		}
 	}
 
+	/**
+	 * Copy the given directory recursively into the target directory (created if
+	 * needed), files being copied concurrently. Attributes (permissions,
+	 * modification time...) are preserved, symbolic links are copied as links.
+	 * 
+	 * @param source
+	 *            the directory to copy
+	 * @param target
+	 *            the directory to copy to
+	 * @param filter
+	 *            the source paths to copy (a rejected directory is skipped with its
+	 *            content)
+	 * @return the number of bytes copied
+	 */
+	default long copyDirectory(final File source, final File target, final Predicate<Path> filter)
+			throws IOException {
+		final Path sourceRoot = source.toPath();
+		final Path targetRoot = target.toPath();
+		final List<Path> files = new ArrayList<>();
+		final AtomicLong size = new AtomicLong();
+		// directories are created first (sequentially), files are collected
+		Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attributes)
+					throws IOException {
+				if (!filter.test(directory)) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				final Path copy = targetRoot.resolve(sourceRoot.relativize(directory).toString());
+				if (Files.isDirectory(copy)) {
+					final PosixFileAttributeView view = Files.getFileAttributeView(copy,
+							PosixFileAttributeView.class);
+					if (view != null) {
+						view.setPermissions(Files.getPosixFilePermissions(directory));
+					}
+				} else {
+					Files.copy(directory, copy, StandardCopyOption.COPY_ATTRIBUTES);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+				if (filter.test(file)) {
+					files.add(file);
+					size.addAndGet(attributes.size());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		final ExecutorService copiers = Executors
+				.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+		try {
+			final List<Future<Path>> copies = new ArrayList<>();
+			for (final Path file : files) {
+				copies.add(copiers.submit(() -> Files.copy(file,
+						targetRoot.resolve(sourceRoot.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES,
+						StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS)));
+			}
+			for (final Future<Path> copy : copies) {
+				copy.get();
+			}
+			return size.get();
+		} catch (final ExecutionException e) {
+			throw new IOException("Could not copy " + source + " to " + target, e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying " + source);
+		} finally {
+			copiers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Make the target directory a copy of the source directory, only copying the
+	 * files whose size or modification time differ and deleting the target files
+	 * missing from the source. Files with a whole-second modification time are
+	 * also compared by content: on filesystems with a coarse time granularity, a
+	 * file rewritten within the same second keeps its size and time.
+	 * 
+	 * @param source
+	 *            the directory to copy
+	 * @param target
+	 *            the directory to update
+	 * @param filter
+	 *            the source paths to copy
+	 * @return the number of bytes copied
+	 */
+	default long syncDirectory(final File source, final File target, final Predicate<Path> filter)
+			throws IOException {
+		final Path sourceRoot = source.toPath();
+		final Path targetRoot = target.toPath();
+		if (Files.isDirectory(targetRoot)) {
+			final List<Path> extraneous = new ArrayList<>();
+			Files.walkFileTree(targetRoot, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attributes) {
+					return this.visit(directory);
+				}
+
+				@Override
+				public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+					return this.visit(file);
+				}
+
+				private FileVisitResult visit(final Path path) {
+					final Path original = sourceRoot.resolve(targetRoot.relativize(path).toString());
+					if (!Files.exists(original, LinkOption.NOFOLLOW_LINKS) || !filter.test(original)) {
+						extraneous.add(path);
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			for (final Path path : extraneous) {
+				FileUtils.forceDelete(path.toFile());
+			}
+		}
+		return this.copyDirectory(source, target, path -> {
+			if (!filter.test(path)) {
+				return false;
+			}
+			final Path copy = targetRoot.resolve(sourceRoot.relativize(path).toString());
+			try {
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) || !Files.exists(copy, LinkOption.NOFOLLOW_LINKS)
+						|| Files.size(path) != Files.size(copy)) {
+					return true;
+				}
+				// copies may not keep sub-millisecond precision
+				final long modified = Files.getLastModifiedTime(path, LinkOption.NOFOLLOW_LINKS).toMillis();
+				if (modified != Files.getLastModifiedTime(copy, LinkOption.NOFOLLOW_LINKS).toMillis()) {
+					return true;
+				}
+				return modified % 1000 == 0 && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)
+						&& !FileUtils.contentEquals(path.toFile(), copy.toFile());
+			} catch (final IOException e) {
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Delete the given directory recursively, files being deleted concurrently.
+	 * 
+	 * @param directory
+	 *            the directory to delete (nothing done if missing)
+	 */
+	default void deleteDirectory(final File directory) throws IOException {
+		if (!directory.exists()) {
+			return;
+		}
+		final List<Path> files = new ArrayList<>();
+		final List<Path> directories = new ArrayList<>();
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+				files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(final Path file, final IOException e) throws IOException {
+				// deleted concurrently
+				if (e instanceof NoSuchFileException) {
+					return FileVisitResult.CONTINUE;
+				}
+				throw e;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path visited, final IOException e) {
+				// children first
+				directories.add(visited);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		final ExecutorService deleters = Executors
+				.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+		try {
+			final List<Future<Boolean>> deletions = new ArrayList<>();
+			for (final Path file : files) {
+				deletions.add(deleters.submit(() -> Files.deleteIfExists(file)));
+			}
+			for (final Future<Boolean> deletion : deletions) {
+				deletion.get();
+			}
+		} catch (final ExecutionException e) {
+			throw new IOException("Could not delete " + directory, e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while deleting " + directory);
+		} finally {
+			deleters.shutdownNow();
+		}
+		for (final Path emptyDirectory : directories) {
+			Files.deleteIfExists(emptyDirectory);
+		}
+	}
+
 }
@@ -119,14 +119,8 @@ public interface OperatingSystemAware {
 	 *            The command to run with its parameters.
 	 */
 	default Process system(final Logger log, final String... command) {
-		log.info("Executing > {}", Arrays.asList(command).stream().collect(Collectors.joining(" ")));
 		try {
-			final ProcessBuilder builder = new ProcessBuilder(command);
-			final Process process = builder.start();
-			// handling process input stream with logger info
-			StreamGobbler.buildAndStart(process.getInputStream(), log::info);
-			// handling process error stream with logger error
-			StreamGobbler.buildAndStart(process.getErrorStream(), log::error);
+			final Process process = this.spawn(log, command);
 			if (0 != process.waitFor()) {
 				throw new IllegalStateException(String.format("Process %s failed%n%s", Arrays.asList(command),
 						IOUtils.toString(process.getErrorStream(), Charset.defaultCharset())));
@@ -138,4 +132,48 @@ public interface OperatingSystemAware {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Start the given system command with its parameters without waiting for it.
+	 * Its error stream and output stream are redirected to the given logger.
+	 *
+	 * @param command
+	 *            The command to run with its parameters.
+	 * @return the started process
+	 * @throws IOException
+	 *             if the process cannot be started
+	 */
+	default Process spawn(final Logger log, final String... command) throws IOException {
+		log.info("Executing > {}", Arrays.asList(command).stream().collect(Collectors.joining(" ")));
+		final Process process = new ProcessBuilder(command).start();
+		// handling process input stream with logger info
+		StreamGobbler.buildAndStart(process.getInputStream(), log::info);
+		// handling process error stream with logger error
+		StreamGobbler.buildAndStart(process.getErrorStream(), log::error);
+		return process;
+	}
+
+	/**
+	 * Check whether the given process is alive (or, lacking a way to know, may
+	 * be), with <code>kill -0</code> like the other signals sent to the
+	 * postmaster.
+	 *
+	 * @param pid
+	 *            the process id
+	 * @return false if the process is known to be dead
+	 */
+	default boolean isProcessAlive(final long pid) {
+		if (SystemUtils.IS_OS_WINDOWS) {
+			return true;
+		}
+		try {
+			// signal 0 only checks the process exists
+			return new ProcessBuilder("kill", "-0", Long.toString(pid)).start().waitFor() == 0;
+		} catch (final IOException e) {
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+	}
 }
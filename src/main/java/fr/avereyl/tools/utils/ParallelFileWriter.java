@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.utils;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Writes files from a single producer thread using a fixed pool of writers.
+ * <p>
+ * Content is read in chunks into a bounded pool of reusable direct buffers.
+ * When every buffer is in flight the producer blocks until a writer hands one
+ * back, so heap and direct memory stay bounded whatever the size or the number
+ * of written files.
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+public class ParallelFileWriter implements Closeable {
+
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final ExecutorService writers;
+	private final Phaser pendingWrites = new Phaser(1);
+	private final AtomicReference<IOException> failure = new AtomicReference<>();
+
+	/**
+	 * @param writerCount
+	 *            number of threads writing chunks concurrently
+	 * @param chunkSize
+	 *            size in bytes of each (direct) buffer
+	 */
+	public ParallelFileWriter(final int writerCount, final int chunkSize) {
+		final int bufferCount = writerCount * 2;
+		this.buffers = new ArrayBlockingQueue<>(bufferCount);
+		for (int i = 0; i < bufferCount; i++) {
+			this.buffers.add(ByteBuffer.allocateDirect(chunkSize));
+		}
+		// there are never more queued chunks than buffers: the queue never overflows
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.writers = new ThreadPoolExecutor(writerCount, writerCount, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(bufferCount), runnable -> {
+					final Thread thread = new Thread(runnable, "epg-writer-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Create the given file and write the given content into it. Returns as soon
+	 * as the whole content has been read, the last chunks may still be being
+	 * written. The file exists when this method returns.
+	 *
+	 * @param target
+	 *            the file to create (must not exist)
+	 * @param content
+	 *            the content to write, read until end of stream
+	 * @param expectedSize
+	 *            the expected number of bytes
+	 * @throws IOException
+	 *             if the file cannot be created, the content is truncated or a
+	 *             previous write failed
+	 */
+	public void write(final Path target, final InputStream content, final long expectedSize) throws IOException {
+		this.checkFailure();
+		final OpenFile file = new OpenFile(target, FileChannel.open(target, CREATE_NEW, WRITE));
+		try {
+			final ReadableByteChannel source = Channels.newChannel(content);
+			long position = 0;
+			boolean endOfStream = false;
+			while (!endOfStream) {
+				final ByteBuffer buffer = this.buffers.take();
+				boolean handedOver = false;
+				try {
+					endOfStream = this.fill(source, buffer);
+					buffer.flip();
+					if (!buffer.hasRemaining()) {
+						break;
+					}
+					final long chunkPosition = position;
+					position += buffer.remaining();
+					file.references.incrementAndGet();
+					this.pendingWrites.register();
+					this.writers.execute(() -> this.writeChunk(file, buffer, chunkPosition));
+					handedOver = true;
+				} finally {
+					// the writer gives it back once written
+					if (!handedOver) {
+						buffer.clear();
+						this.buffers.add(buffer);
+					}
+				}
+			}
+			if (position != expectedSize) {
+				throw new IOException(
+						String.format("Expected %d bytes but read %d for %s", expectedSize, position, target));
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing " + target);
+		} finally {
+			this.release(file);
+		}
+	}
+
+	/**
+	 * Wait for all pending writes then stop the writers.
+	 *
+	 * @throws IOException
+	 *             if any write failed
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.pendingWrites.awaitAdvanceInterruptibly(this.pendingWrites.arrive());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for pending writes");
+		} finally {
+			this.writers.shutdownNow();
+		}
+		this.checkFailure();
+	}
+
+	/**
+	 * Read from the source until the buffer is full or the end of stream is
+	 * reached.
+	 *
+	 * @return true if the end of stream has been reached
+	 */
+	private boolean fill(final ReadableByteChannel source, final ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (source.read(buffer) == -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void writeChunk(final OpenFile file, final ByteBuffer buffer, final long chunkPosition) {
+		try {
+			long position = chunkPosition;
+			while (buffer.hasRemaining()) {
+				position += file.channel.write(buffer, position);
+			}
+		} catch (final IOException e) {
+			log.error("Could not write file {}", file.path, e);
+			this.failure.compareAndSet(null, e);
+		} finally {
+			buffer.clear();
+			this.buffers.add(buffer);
+			this.release(file);
+			this.pendingWrites.arriveAndDeregister();
+		}
+	}
+
+	private void release(final OpenFile file) {
+		if (file.references.decrementAndGet() == 0) {
+			try {
+				file.channel.close();
+			} catch (final IOException e) {
+				log.error("Unexpected error while closing the channel", e);
+				this.failure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		final IOException error = this.failure.get();
+		if (error != null) {
+			throw new IOException("A previous write failed", error);
+		}
+	}
+
+	/**
+	 * A file being written, closed once the producer and all its chunks released
+	 * it.
+	 */
+	private static final class OpenFile {
+
+		private final Path path;
+		private final FileChannel channel;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private OpenFile(final Path path, final FileChannel channel) {
+			this.path = path;
+			this.channel = channel;
+		}
+
+	}
+
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright 2019 the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ ******************************************************************************/
+package fr.avereyl.tools.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Cross-process registry of reserved TCP ports, stored as lease files in a
+ * shared directory.
+ * <p>
+ * A port is reserved by holding an exclusive lock on its lease file, so two
+ * processes (or two servers of the same JVM) never get the same port between
+ * the moment it is chosen and the moment it is bound. The lease ends when
+ * released or when its process dies, the operating system releasing the lock.
+ * Lease files are kept (deleting a locked file would be racy).
+ *
+ * @author guillaume
+ *
+ */
+@Slf4j
+public class PortRegistry {
+
+	private static final int MAX_ATTEMPTS = 100;
+
+	private final File directory;
+
+	/**
+	 * @param directory
+	 *            the directory shared by all processes where storing leases
+	 */
+	public PortRegistry(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Reserve a port free at the time of the call and not reserved by anybody
+	 * else.
+	 *
+	 * @return the reservation, to be closed when the port is no longer needed
+	 * @throws IOException
+	 *             if no port could be reserved
+	 */
+	public Reservation reserve() throws IOException {
+		if (!this.directory.mkdirs() && !this.directory.isDirectory()) {
+			throw new IOException("Could not create " + this.directory);
+		}
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			final int port;
+			try (ServerSocket socket = new ServerSocket(0)) {
+				port = socket.getLocalPort();
+			}
+			final FileChannel channel = FileChannel.open(new File(this.directory, port + ".lease").toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				final FileLock lock = channel.tryLock();
+				if (lock != null) {
+					// owner kept for diagnostics only
+					channel.truncate(0).write(ByteBuffer.wrap(
+							ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8)));
+					log.debug("Reserved port {}", port);
+					return new Reservation(port, channel);
+				}
+			} catch (final OverlappingFileLockException e) {
+				// reserved by this JVM
+			}
+			channel.close();
+			log.debug("Port {} already reserved", port);
+		}
+		throw new IOException("Could not reserve a port after " + MAX_ATTEMPTS + " attempts");
+	}
+
+	/**
+	 * A reserved port, released when closed.
+	 */
+	public static final class Reservation implements Closeable {
+
+		private final int port;
+		private final FileChannel channel;
+
+		private Reservation(final int port, final FileChannel channel) {
+			this.port = port;
+			this.channel = channel;
+		}
+
+		public int getPort() {
+			return this.port;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// closing the channel releases the lock
+			this.channel.close();
+		}
+
+	}
+
+}